@@ -11,7 +11,6 @@ import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Range;
 import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,26 +19,27 @@ public class ComparisonFrameRender extends FrameRender {
     private int mWidth;
     private int mHeight;
     private Resources mResources;
+    private List<MatOfPoint> mBorder;
     public ComparisonFrameRender(CameraCalibrator calibrator, int width, int height, Resources resources) {
         mCalibrator = calibrator;
         mWidth = width;
         mHeight = height;
         mResources = resources;
+
+        mBorder = new ArrayList<MatOfPoint>();
+        final int shift = (int)(mWidth * 0.005);
+        mBorder.add(new MatOfPoint(new Point(mWidth / 2 - shift, 0), new Point(mWidth / 2 + shift, 0),
+                new Point(mWidth / 2 + shift, mHeight), new Point(mWidth / 2 - shift, mHeight)));
     }
 
     @Override
     public Mat render(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
-        Mat undistortedFrame = new Mat(inputFrame.rgba().size(), inputFrame.rgba().type());
-        Imgproc.undistort(inputFrame.rgba(), undistortedFrame,
-                mCalibrator.getCameraMatrix(), mCalibrator.getDistortionCoefficients());
+        // undistorted first, the rgba frame is drawn on below
+        Mat undistortedFrame = undistortedRgba(inputFrame);
 
         Mat comparisonFrame = inputFrame.rgba();
         undistortedFrame.colRange(new Range(0, mWidth / 2)).copyTo(comparisonFrame.colRange(new Range(mWidth / 2, mWidth)));
-        List<MatOfPoint> border = new ArrayList<MatOfPoint>();
-        final int shift = (int)(mWidth * 0.005);
-        border.add(new MatOfPoint(new Point(mWidth / 2 - shift, 0), new Point(mWidth / 2 + shift, 0),
-                new Point(mWidth / 2 + shift, mHeight), new Point(mWidth / 2 - shift, mHeight)));
-        Core.fillPoly(comparisonFrame, border, new Scalar(255, 255, 255));
+        Core.fillPoly(comparisonFrame, mBorder, new Scalar(255, 255, 255));
 
         Core.putText(comparisonFrame, mResources.getString(R.string.original), new Point(mWidth * 0.1, mHeight * 0.1),
                 Core.FONT_HERSHEY_SIMPLEX, 1.0, new Scalar(255, 255, 0));
@@ -1,10 +1,29 @@
 package com.informatics.lehigh.cardboneviz.calibration;
 
+import org.opencv.android.CachedCameraViewFrame;
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
 
 public abstract class FrameRender {
     protected CameraCalibrator mCalibrator;
+    private Mat mUndistortedFrame;
 
     public abstract Mat render(CameraBridgeViewBase.CvCameraViewFrame inputFrame);
+
+    /**
+     * Returns the rgba frame undistorted with the calibrator parameters. The frames of the
+     * camera views compute it once per frame with cached maps, other frames are undistorted
+     * here into a reused Mat.
+     */
+    protected Mat undistortedRgba(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        if (inputFrame instanceof CachedCameraViewFrame)
+            return ((CachedCameraViewFrame) inputFrame).undistortedRgba(mCalibrator.getCameraMatrix(),
+                    mCalibrator.getDistortionCoefficients());
+        if (mUndistortedFrame == null)
+            mUndistortedFrame = new Mat();
+        Imgproc.undistort(inputFrame.rgba(), mUndistortedFrame,
+                mCalibrator.getCameraMatrix(), mCalibrator.getDistortionCoefficients());
+        return mUndistortedFrame;
+    }
 }
\ No newline at end of file
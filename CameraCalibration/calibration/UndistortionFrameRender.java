@@ -2,7 +2,6 @@ package com.informatics.lehigh.cardboneviz.calibration;
 
 import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
 
 public class UndistortionFrameRender extends FrameRender {
     public UndistortionFrameRender(CameraCalibrator calibrator) {
@@ -11,10 +10,6 @@ public class UndistortionFrameRender extends FrameRender {
 
     @Override
     public Mat render(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
-        Mat renderedFrame = new Mat(inputFrame.rgba().size(), inputFrame.rgba().type());
-        Imgproc.undistort(inputFrame.rgba(), renderedFrame,
-                mCalibrator.getCameraMatrix(), mCalibrator.getDistortionCoefficients());
-
-        return renderedFrame;
+        return undistortedRgba(inputFrame);
     }
 }
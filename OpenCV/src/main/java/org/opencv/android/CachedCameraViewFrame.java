@@ -0,0 +1,127 @@
+package org.opencv.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Camera frame which computes each of its representations at most once per frame:
+ * the gray and RGBA images, the levels of a gray pyramid and the undistorted RGBA image.
+ * Everybody asking for the same representation of the frame - the detector, the
+ * renderers and the overlays drawn on it - gets the same Mat, so changes made to it
+ * are seen by the following callers. The Mats, the pyramid and the undistortion maps
+ * are kept from one frame to the next, so nothing is allocated while the frame size
+ * and the camera parameters do not change.
+ * The camera views call nextFrame each time the frame holds a new image.
+ */
+public abstract class CachedCameraViewFrame implements CvCameraViewFrame {
+
+    private final UndistortMaps mMaps;
+    private final Mat mRgba;
+    private final List<Mat> mPyramid;
+    private final Mat mUndistortedRgba;
+
+    private Mat mGray;
+    // number of the current frame and of the frame each representation was computed for
+    private long mFrame;
+    private long mGrayFrame, mRgbaFrame, mUndistortedRgbaFrame;
+    private long[] mPyramidFrames;
+    // version of the maps the undistorted image was computed with
+    private long mUndistortedRgbaMaps;
+
+    /**
+     * @param maps the undistortion maps, which can be shared by all the frames of a view.
+     */
+    protected CachedCameraViewFrame(UndistortMaps maps) {
+        mMaps = maps;
+        mRgba = new Mat();
+        mPyramid = new ArrayList<Mat>();
+        mPyramidFrames = new long[0];
+        mUndistortedRgba = new Mat();
+        mFrame = 1;
+    }
+
+    /**
+     * This method returns the gray image of the frame, called at most once per frame.
+     */
+    protected abstract Mat computeGray();
+
+    /**
+     * This method converts the frame into RGBA, called at most once per frame.
+     */
+    protected abstract void computeRgba(Mat rgba);
+
+    @Override
+    public Mat gray() {
+        if (mGrayFrame != mFrame) {
+            mGray = computeGray();
+            mGrayFrame = mFrame;
+        }
+        return mGray;
+    }
+
+    @Override
+    public Mat rgba() {
+        if (mRgbaFrame != mFrame) {
+            computeRgba(mRgba);
+            mRgbaFrame = mFrame;
+        }
+        return mRgba;
+    }
+
+    /**
+     * This method returns a level of the gray pyramid of the frame, each one half the
+     * size of the previous one.
+     * @param level 0 is the gray image itself.
+     */
+    public Mat grayPyramid(int level) {
+        if (level == 0)
+            return gray();
+        if (level > mPyramid.size()) {
+            long[] frames = new long[level];
+            System.arraycopy(mPyramidFrames, 0, frames, 0, mPyramidFrames.length);
+            mPyramidFrames = frames;
+            while (mPyramid.size() < level)
+                mPyramid.add(new Mat());
+        }
+        Mat dst = mPyramid.get(level - 1);
+        if (mPyramidFrames[level - 1] != mFrame) {
+            Imgproc.pyrDown(grayPyramid(level - 1), dst);
+            mPyramidFrames[level - 1] = mFrame;
+        }
+        return dst;
+    }
+
+    /**
+     * This method returns the RGBA image of the frame without the lens distortion.
+     * @param cameraMatrix the intrinsic parameters of the camera.
+     * @param distCoeffs the distortion coefficients.
+     */
+    public Mat undistortedRgba(Mat cameraMatrix, Mat distCoeffs) {
+        long maps = mMaps.update(cameraMatrix, distCoeffs, rgba());
+        if (mUndistortedRgbaFrame != mFrame || mUndistortedRgbaMaps != maps) {
+            mMaps.remap(rgba(), mUndistortedRgba);
+            mUndistortedRgbaFrame = mFrame;
+            mUndistortedRgbaMaps = maps;
+        }
+        return mUndistortedRgba;
+    }
+
+    /**
+     * This method must be called when the frame holds a new image, the representations
+     * computed are no longer valid.
+     */
+    protected void nextFrame() {
+        mFrame++;
+    }
+
+    public void release() {
+        mRgba.release();
+        for (Mat level : mPyramid)
+            level.release();
+        mUndistortedRgba.release();
+    }
+}
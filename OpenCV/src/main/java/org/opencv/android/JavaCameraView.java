@@ -1,6 +1,8 @@
 package org.opencv.android;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
@@ -31,14 +33,29 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
     private static final int MAGIC_TEXTURE_ID = 10;
     private static final String TAG = "JavaCameraView";
 
-    private byte mBuffer[];
+    /* Frames go from the preview callback to the worker through three buffers without
+     * locks: the callback writes into its own buffer, then swaps it with the middle one,
+     * and the worker swaps its buffer with the middle one when it holds a new frame.
+     * A frame that is still in the middle buffer when the next one arrives is overwritten.
+     */
+    private static final int CHAIN_SIZE = 3;
+    private static final int CALLBACK_BUFFERS = 3;
+    private static final int FRESH = 4; // set in mMiddleIdx while the middle buffer holds a frame not delivered yet
+    private static final int INDEX_MASK = 3;
+
+    private byte mBuffers[][];
     private Mat[] mFrameChain;
-    private int mChainIdx = 0;
-    private Thread mThread;
-    private boolean mStopThread;
+    private int mWriteIdx; // used only by the preview callback
+    private int mReadIdx; // used only by the worker
+    private final AtomicInteger mMiddleIdx = new AtomicInteger();
+    private volatile long mOverwrittenFrames;
+    private volatile long mDroppedFrames;
+    private volatile Thread mThread;
+    private volatile boolean mStopThread;
 
     protected Camera mCamera;
     protected JavaCameraFrame[] mCameraFrame;
+    private final UndistortMaps mUndistortMaps = new UndistortMaps();
     private SurfaceTexture mSurfaceTexture;
 
     public static class JavaCameraSizeAccessor implements ListItemAccessor {
@@ -174,20 +191,22 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
                     int size = mFrameWidth * mFrameHeight;
                     size  = size * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
-                    mBuffer = new byte[size];
-
-                    mCamera.addCallbackBuffer(mBuffer);
+                    /* The camera fills the buffers in turns, each one is given back once copied */
+                    mBuffers = new byte[CALLBACK_BUFFERS][size];
+                    for (int i = 0; i < CALLBACK_BUFFERS; i++)
+                        mCamera.addCallbackBuffer(mBuffers[i]);
                     mCamera.setPreviewCallbackWithBuffer(this);
 
-                    mFrameChain = new Mat[2];
-                    mFrameChain[0] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-                    mFrameChain[1] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                    mFrameChain = new Mat[CHAIN_SIZE];
+                    mCameraFrame = new JavaCameraFrame[CHAIN_SIZE];
+                    for (int i = 0; i < CHAIN_SIZE; i++)
+                        mFrameChain[i] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
 
                     AllocateCache();
 
-                    mCameraFrame = new JavaCameraFrame[2];
-                    mCameraFrame[0] = new JavaCameraFrame(mFrameChain[0], mFrameWidth, mFrameHeight);
-                    mCameraFrame[1] = new JavaCameraFrame(mFrameChain[1], mFrameWidth, mFrameHeight);
+                    for (int i = 0; i < CHAIN_SIZE; i++)
+                        mCameraFrame[i] = new JavaCameraFrame(mFrameChain[i], mFrameWidth, mFrameHeight, mUndistortMaps);
+                    resetChain();
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
                         mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
@@ -220,17 +239,39 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             }
             mCamera = null;
             if (mFrameChain != null) {
-                mFrameChain[0].release();
-                mFrameChain[1].release();
+                for (int i = 0; i < mFrameChain.length; i++)
+                    mFrameChain[i].release();
             }
             if (mCameraFrame != null) {
-                mCameraFrame[0].release();
-                mCameraFrame[1].release();
+                for (int i = 0; i < mCameraFrame.length; i++)
+                    mCameraFrame[i].release();
             }
+            mUndistortMaps.release();
+            mBuffers = null;
         }
     }
 
-    private boolean mCameraFrameReady = false;
+    /**
+     * Returns the number of preview frames replaced by a newer one before they could be
+     * delivered, because the processing of the previous frame was not finished.
+     */
+    public long getOverwrittenFrames() {
+        return mOverwrittenFrames;
+    }
+
+    /**
+     * Returns the number of preview frames received when the camera was being released,
+     * or of an unexpected size, which were not copied.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void resetChain() {
+        mWriteIdx = 0;
+        mMiddleIdx.set(1);
+        mReadIdx = 2;
+    }
 
     @Override
     protected boolean connectCamera(int width, int height) {
@@ -243,8 +284,6 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         if (!initializeCamera(width, height))
             return false;
 
-        mCameraFrameReady = false;
-
         /* now we can start update thread */
         Log.d(TAG, "Starting processing thread");
         mStopThread = false;
@@ -263,12 +302,12 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         try {
             mStopThread = true;
             Log.d(TAG, "Notify thread");
-            synchronized (this) {
-                this.notify();
+            Thread thread = mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+                Log.d(TAG, "Wating for thread");
+                thread.join();
             }
-            Log.d(TAG, "Wating for thread");
-            if (mThread != null)
-                mThread.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
@@ -277,75 +316,70 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
         /* Now release camera */
         releaseCamera();
-
-        mCameraFrameReady = false;
     }
 
     @Override
     public void onPreviewFrame(byte[] frame, Camera arg1) {
-        Log.d(TAG, "Preview Frame received. Frame size: " + frame.length);
-        synchronized (this) {
-            mFrameChain[mChainIdx].put(0, 0, frame);
-            mCameraFrameReady = true;
-            this.notify();
+        Camera camera = mCamera;
+        byte[][] buffers = mBuffers;
+        if (camera == null || buffers == null || frame.length != buffers[0].length) {
+            mDroppedFrames++;
+            return;
         }
-        if (mCamera != null)
-            mCamera.addCallbackBuffer(mBuffer);
+        mFrameChain[mWriteIdx].put(0, 0, frame);
+        camera.addCallbackBuffer(frame);
+
+        int previous = mMiddleIdx.getAndSet(mWriteIdx | FRESH);
+        if ((previous & FRESH) != 0)
+            mOverwrittenFrames++;
+        mWriteIdx = previous & INDEX_MASK;
+        Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
     }
 
-    private class JavaCameraFrame implements CvCameraViewFrame {
+    private class JavaCameraFrame extends CachedCameraViewFrame {
         @Override
-        public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
+        protected Mat computeGray() {
+            return mGray;
         }
 
         @Override
-        public Mat rgba() {
-            Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
-            return mRgba;
+        protected void computeRgba(Mat rgba) {
+            Imgproc.cvtColor(mYuvFrameData, rgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
         }
 
-        public JavaCameraFrame(Mat Yuv420sp, int width, int height) {
-            super();
-            mWidth = width;
-            mHeight = height;
+        public JavaCameraFrame(Mat Yuv420sp, int width, int height, UndistortMaps maps) {
+            super(maps);
             mYuvFrameData = Yuv420sp;
-            mRgba = new Mat();
+            mGray = mYuvFrameData.submat(0, height, 0, width);
         }
 
+        @Override
         public void release() {
-            mRgba.release();
+            super.release();
+            mGray.release();
         }
 
         private Mat mYuvFrameData;
-        private Mat mRgba;
-        private int mWidth;
-        private int mHeight;
+        private Mat mGray;
     };
 
     private class CameraWorker implements Runnable {
 
         @Override
         public void run() {
-            do {
-                synchronized (JavaCameraView.this) {
-                    try {
-                        while (!mCameraFrameReady && !mStopThread) {
-                            JavaCameraView.this.wait();
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    if (mCameraFrameReady)
-                        mChainIdx = 1 - mChainIdx;
+            while (!mStopThread) {
+                if ((mMiddleIdx.get() & FRESH) == 0) {
+                    LockSupport.park(this);
+                    continue;
                 }
-
-                if (!mStopThread && mCameraFrameReady) {
-                    mCameraFrameReady = false;
-                    if (!mFrameChain[1 - mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                mReadIdx = mMiddleIdx.getAndSet(mReadIdx) & INDEX_MASK;
+                if (!mFrameChain[mReadIdx].empty()) {
+                    mCameraFrame[mReadIdx].nextFrame();
+                    deliverAndDrawFrame(mCameraFrame[mReadIdx]);
                 }
-            } while (!mStopThread);
+            }
             Log.d(TAG, "Finish processing thread");
         }
     }
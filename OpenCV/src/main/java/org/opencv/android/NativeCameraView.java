@@ -135,33 +135,39 @@ public class NativeCameraView extends CameraBridgeViewBase {
         }
     }
 
-    private static class NativeCameraFrame implements CvCameraViewFrame {
+    private static class NativeCameraFrame extends CachedCameraViewFrame {
 
         @Override
-        public Mat rgba() {
-            mCapture.retrieve(mRgba, Highgui.CV_CAP_ANDROID_COLOR_FRAME_RGBA);
-            return mRgba;
+        protected void computeRgba(Mat rgba) {
+            mCapture.retrieve(rgba, Highgui.CV_CAP_ANDROID_COLOR_FRAME_RGBA);
         }
 
         @Override
-        public Mat gray() {
+        protected Mat computeGray() {
             mCapture.retrieve(mGray, Highgui.CV_CAP_ANDROID_GREY_FRAME);
             return mGray;
         }
 
         public NativeCameraFrame(VideoCapture capture) {
+            this(capture, new UndistortMaps());
+        }
+
+        private NativeCameraFrame(VideoCapture capture, UndistortMaps maps) {
+            super(maps);
             mCapture = capture;
+            mMaps = maps;
             mGray = new Mat();
-            mRgba = new Mat();
         }
 
+        @Override
         public void release() {
+            super.release();
             if (mGray != null) mGray.release();
-            if (mRgba != null) mRgba.release();
+            mMaps.release();
         }
 
         private VideoCapture mCapture;
-        private Mat mRgba;
+        private UndistortMaps mMaps;
         private Mat mGray;
     };
 
@@ -174,6 +180,7 @@ public class NativeCameraView extends CameraBridgeViewBase {
                     break;
                 }
 
+                mFrame.nextFrame();
                 deliverAndDrawFrame(mFrame);
             } while (!mStopThread);
         }
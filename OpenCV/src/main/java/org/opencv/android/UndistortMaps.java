@@ -0,0 +1,59 @@
+package org.opencv.android;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Maps to undistort the frames of a camera view, computed again only when the camera
+ * parameters or the frame size change instead of for every frame as Imgproc.undistort does.
+ */
+public class UndistortMaps {
+    private final Mat mMap1 = new Mat();
+    private final Mat mMap2 = new Mat();
+    private final Mat mCameraMatrix = new Mat();
+    private final Mat mDistCoeffs = new Mat();
+    private final Mat mIdentity = new Mat();
+    private int mRows, mCols;
+    private long mVersion;
+
+    /**
+     * This method computes the maps again if the parameters or the size of the image
+     * are not the ones they were computed for.
+     * @return the version of the maps, it changes each time they are computed.
+     */
+    public long update(Mat cameraMatrix, Mat distCoeffs, Mat image) {
+        if (image.rows() == mRows && image.cols() == mCols && mVersion != 0 &&
+                same(cameraMatrix, mCameraMatrix) && same(distCoeffs, mDistCoeffs))
+            return mVersion;
+        Imgproc.initUndistortRectifyMap(cameraMatrix, distCoeffs, mIdentity, cameraMatrix, image.size(),
+                CvType.CV_16SC2, mMap1, mMap2);
+        cameraMatrix.copyTo(mCameraMatrix);
+        distCoeffs.copyTo(mDistCoeffs);
+        mRows = image.rows();
+        mCols = image.cols();
+        return ++mVersion;
+    }
+
+    /**
+     * This method undistorts an image with the maps, which must be up to date.
+     */
+    public void remap(Mat src, Mat dst) {
+        Imgproc.remap(src, dst, mMap1, mMap2, Imgproc.INTER_LINEAR);
+    }
+
+    public void release() {
+        mMap1.release();
+        mMap2.release();
+        mCameraMatrix.release();
+        mDistCoeffs.release();
+        mRows = mCols = 0;
+    }
+
+    private static boolean same(Mat a, Mat b) {
+        if (a.rows() != b.rows() || a.cols() != b.cols() || a.type() != b.type())
+            return false;
+        return a.empty() || Core.norm(a, b, Core.NORM_INF) == 0;
+    }
+}
@@ -0,0 +1,85 @@
+package es.ava.aruco;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Size;
+
+/**
+ * BoardDetector.detect with every marker of the board detected, their corners
+ * projected with a known pose.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BoardBenchmark {
+	/**
+	 * columns x rows of the board.
+	 */
+	@Param({"2x2", "5x7"})
+	public String board;
+
+	@Param({"false", "true"})
+	public boolean robust;
+
+	@Param({"false", "true"})
+	public boolean tracking;
+
+	private BoardDetector detector;
+	private BoardConfiguration conf;
+	private CameraParameters cp;
+	private Vector<Marker> markers;
+	private Board detected;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		SyntheticScene.loadNative();
+		int width = Integer.parseInt(board.substring(0, board.indexOf('x')));
+		int height = Integer.parseInt(board.substring(board.indexOf('x')+1));
+		int[][] ids = new int[height][width];
+		for(int y=0;y<height;y++)
+			for(int x=0;x<width;x++)
+				ids[y][x] = SyntheticScene.id(y*width+x);
+		// markers of 100 pixels 20 pixels apart, as the ones of the sample board
+		conf = new BoardConfiguration(width, height, ids, 100, 20);
+		cp = SyntheticScene.camera(new Size(1280, 720));
+		double[] intrinsics = cp.getIntrinsics();
+		BoardModel model = new BoardModel(conf, SyntheticScene.MARKER_SIZE);
+		double[] pose = SyntheticScene.pose();
+		markers = new Vector<Marker>();
+		for(int c=0;c<model.nCells;c++){
+			float cx = 0, cy = 0;
+			for(int k=0;k<4;k++){
+				cx += model.objCorners[12*c+3*k]/4;
+				cy += model.objCorners[12*c+3*k+1]/4;
+			}
+			float[] corners = SyntheticScene.project(pose, intrinsics, cx, cy);
+			markers.add(SyntheticScene.marker(corners, 0, ids[c/width][c%width]));
+		}
+		detector = new BoardDetector();
+		detector.setRobustPose(robust);
+		detector.setPoseTracking(tracking);
+		detected = new Board();
+	}
+
+	@Benchmark
+	public float detect(){
+		return detector.detect(markers, conf, detected, cp, SyntheticScene.MARKER_SIZE);
+	}
+}
@@ -0,0 +1,96 @@
+package es.ava.aruco;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Reading and decoding the code of a single marker: from the canonical image with
+ * Marker.extractCode, from the frame with TileSampler, and the decoders alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CodeBenchmark {
+	private Marker marker;
+	private Mat canonical;
+	private byte[] pixels;
+	private int cols, rows;
+	private float[] corners;
+	private TileSampler sampler;
+	private Code code;
+	private int arucoCode;
+	private TableDictionary table;
+	private long tableCode;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		SyntheticScene.loadNative();
+		int id = SyntheticScene.id(0);
+		// the size MarkerDetector warps the candidates to
+		canonical = ArucoDictionary.getInstance().createMarkerImage(id, 50);
+		corners = new float[8];
+		Mat frame = SyntheticScene.frame(new Size(640, 480), 1, corners);
+		cols = frame.cols();
+		rows = frame.rows();
+		pixels = new byte[cols*rows];
+		frame.get(0, 0, pixels);
+		frame.release();
+		marker = SyntheticScene.marker(corners, 0, -1);
+		marker.setMat(canonical);
+		sampler = new TileSampler();
+		code = new Code();
+		// rotated once and with a wrong bit, so the decoders do not take their shortest path
+		arucoCode = CodeDecoder.rotate(CodeDecoder.code(id));
+		table = TableDictionary.generate(6, 250, 6, 1);
+		tableCode = Dictionary.rotate(table.getCode(100), 6) ^ (1L<<17);
+	}
+
+	@Benchmark
+	public int extractCode(){
+		marker.extractCode();
+		return marker.getCode().get(1, 1);
+	}
+
+	@Benchmark
+	public int extractCodeAndId(){
+		marker.extractCode();
+		return marker.calculateMarkerId();
+	}
+
+	@Benchmark
+	public boolean tileSampler(){
+		return sampler.sample(pixels, cols, rows, corners, code);
+	}
+
+	@Benchmark
+	public int decodeAruco(){
+		return CodeDecoder.decode(arucoCode, 0);
+	}
+
+	@Benchmark
+	public int decodeTableWithError(){
+		return table.decode(tableCode, 2);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		canonical.release();
+	}
+}
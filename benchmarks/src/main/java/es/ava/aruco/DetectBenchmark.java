@@ -0,0 +1,95 @@
+package es.ava.aruco;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * MarkerDetector.detect end to end on synthetic frames. StageBenchmark gives the
+ * time of each of its stages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DetectBenchmark {
+	@Param({"480p", "720p", "1080p"})
+	public String resolution;
+
+	@Param({"0", "1", "10", "50"})
+	public int markers;
+
+	/**
+	 * grey gives the Y plane as CvCameraViewFrame.gray does, rgba needs a conversion.
+	 */
+	@Param({"grey", "rgba"})
+	public String input;
+
+	/**
+	 * default, tile (tile sampling), square (SquarePoseSolver), pooling, or fast for
+	 * all of them with pose tracking.
+	 */
+	@Param({"default"})
+	public String mode;
+
+	private MarkerDetector detector;
+	private CameraParameters cp;
+	private Mat frame;
+	private Vector<Marker> detected;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		SyntheticScene.loadNative();
+		Size size = SyntheticScene.resolution(resolution);
+		Mat grey = SyntheticScene.frame(size, markers, null);
+		if(input.equals("rgba")){
+			frame = new Mat();
+			Imgproc.cvtColor(grey, frame, Imgproc.COLOR_GRAY2RGBA);
+			grey.release();
+		}
+		else
+			frame = grey;
+		cp = SyntheticScene.camera(size);
+		detector = new MarkerDetector();
+		boolean fast = mode.equals("fast");
+		detector.setTileSampling(fast || mode.equals("tile"));
+		detector.setSquarePoseSolver(fast || mode.equals("square"));
+		detector.setPooling(fast || mode.equals("pooling"));
+		detector.setPoseTracking(fast);
+		detected = new Vector<Marker>();
+		detector.detect(frame, detected, cp, SyntheticScene.MARKER_SIZE);
+		if(detected.size() != markers)
+			throw new IllegalStateException("found "+detected.size()+" of the "+markers+" markers of the frame");
+	}
+
+	@Benchmark
+	public int detect(){
+		detector.detect(frame, detected, cp, SyntheticScene.MARKER_SIZE);
+		return detected.size();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		detector.release();
+		frame.release();
+	}
+}
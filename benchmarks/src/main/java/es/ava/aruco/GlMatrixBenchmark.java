@@ -0,0 +1,62 @@
+package es.ava.aruco;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import es.ava.aruco.exceptions.CPException;
+import es.ava.aruco.exceptions.ExtParamException;
+
+/**
+ * The OpenGL matrices given to the renderer for every marker and frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GlMatrixBenchmark {
+	private CameraParameters cp;
+	private Size size;
+	private Mat rvec, tvec;
+	private double[] matrix;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		SyntheticScene.loadNative();
+		size = new Size(1280, 720);
+		cp = SyntheticScene.camera(size);
+		rvec = new Mat(3,1,CvType.CV_64FC1);
+		tvec = new Mat(3,1,CvType.CV_64FC1);
+		rvec.put(0, 0, 0.3, -0.2, 0.1);
+		tvec.put(0, 0, 0.02, -0.01, 1);
+		matrix = new double[16];
+	}
+
+	@Benchmark
+	public double[] modelViewMatrix() throws ExtParamException{
+		Utils.glGetModelViewMatrix(matrix, rvec, tvec);
+		return matrix;
+	}
+
+	@Benchmark
+	public double[] projectionMatrix() throws CPException, ExtParamException{
+		Utils.glGetProjectionMatrix(cp, size, size, matrix, 0.05, 10);
+		return matrix;
+	}
+}
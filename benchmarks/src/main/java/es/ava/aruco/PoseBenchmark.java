@@ -0,0 +1,93 @@
+package es.ava.aruco;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+import org.opencv.core.Size;
+
+/**
+ * The pose of a single marker with solvePnP and with SquarePoseSolver, from scratch
+ * and starting from the right pose, as PoseTracker does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PoseBenchmark {
+	private CameraParameters cp;
+	private double[] intrinsics;
+	private float[] corners;
+	private SquarePoseSolver solver;
+	private double[] pose, guess;
+	private MatOfPoint3f objPoints;
+	private MatOfPoint2f imgPoints;
+	private Mat rvec, tvec, rvecGuess, tvecGuess;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		SyntheticScene.loadNative();
+		cp = SyntheticScene.camera(new Size(1280, 720));
+		intrinsics = cp.getIntrinsics();
+		guess = SyntheticScene.pose();
+		corners = SyntheticScene.project(guess, intrinsics, 0, 0);
+		solver = new SquarePoseSolver();
+		pose = new double[12];
+		double h = SyntheticScene.MARKER_SIZE/2.0;
+		objPoints = new MatOfPoint3f(new Point3(-h,-h,0), new Point3(-h,h,0), new Point3(h,h,0), new Point3(h,-h,0));
+		imgPoints = new MatOfPoint2f();
+		imgPoints.create(4, 1, CvType.CV_32FC2);
+		imgPoints.put(0, 0, corners);
+		rvec = new Mat(3,1,CvType.CV_64FC1);
+		tvec = new Mat(3,1,CvType.CV_64FC1);
+		rvecGuess = new Mat(3,1,CvType.CV_64FC1);
+		tvecGuess = new Mat(3,1,CvType.CV_64FC1);
+		Calib3d.solvePnP(objPoints, imgPoints, cp.getCameraMatrix(), cp.getDistCoeff(), rvecGuess, tvecGuess);
+	}
+
+	@Benchmark
+	public Mat solvePnP(){
+		Calib3d.solvePnP(objPoints, imgPoints, cp.getCameraMatrix(), cp.getDistCoeff(), rvec, tvec);
+		return tvec;
+	}
+
+	@Benchmark
+	public Mat solvePnPTracked(){
+		rvecGuess.copyTo(rvec);
+		tvecGuess.copyTo(tvec);
+		Calib3d.solvePnP(objPoints, imgPoints, cp.getCameraMatrix(), cp.getDistCoeff(), rvec, tvec, true,
+				Calib3d.ITERATIVE);
+		return tvec;
+	}
+
+	@Benchmark
+	public double[] squarePoseSolver(){
+		solver.solve(corners, intrinsics, SyntheticScene.MARKER_SIZE, pose, false);
+		return pose;
+	}
+
+	@Benchmark
+	public double[] squarePoseSolverTracked(){
+		System.arraycopy(guess, 0, pose, 0, 12);
+		solver.solve(corners, intrinsics, SyntheticScene.MARKER_SIZE, pose, true);
+		return pose;
+	}
+}
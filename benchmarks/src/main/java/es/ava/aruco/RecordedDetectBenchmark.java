@@ -0,0 +1,107 @@
+package es.ava.aruco;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+import es.ava.aruco.replay.FrameSource;
+import es.ava.aruco.replay.ImageDirectorySource;
+import es.ava.aruco.replay.RawFrameSource;
+
+/**
+ * MarkerDetector.detect over recorded frames, one frame per call in a loop. The
+ * frames are given with -p frames=&lt;directory of images or file written by
+ * RawFrameWriter&gt; and the camera parameters, optionally, with -p camera=&lt;file&gt;.
+ * Every threshold method of the detector is compared on the same frames, with its
+ * default parameters unless they are given with -p thresholdParams=p1,p2. They are
+ * those of adaptiveThreshold, so FIXED_THRES needs its own, such as 100,0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RecordedDetectBenchmark {
+	@Param({""})
+	public String frames;
+
+	@Param({""})
+	public String camera;
+
+	@Param({"FIXED_THRES", "ADPT_THRES", "CANNY", "INTEGRAL_THRES"})
+	public MarkerDetector.thresSuppMethod thresholdMethod;
+
+	@Param({""})
+	public String thresholdParams;
+
+	private MarkerDetector detector;
+	private CameraParameters cp;
+	private List<Mat> recorded;
+	private Vector<Marker> detected;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		if(frames.isEmpty())
+			throw new IllegalArgumentException("give the frames to replay with -p frames=<file or directory>");
+		SyntheticScene.loadNative();
+		File file = new File(frames);
+		FrameSource source = file.isDirectory()? new ImageDirectorySource(file, true) : new RawFrameSource(file);
+		recorded = new ArrayList<Mat>();
+		Mat frame = new Mat();
+		while(source.read(frame)){
+			recorded.add(frame);
+			frame = new Mat();
+		}
+		frame.release();
+		source.close();
+		if(recorded.isEmpty())
+			throw new IllegalArgumentException("no frames in "+frames);
+		cp = new CameraParameters();
+		if(!camera.isEmpty())
+			cp.readFromFile(camera);
+		detector = new MarkerDetector();
+		detector.setThresholdMethod(thresholdMethod);
+		if(!thresholdParams.isEmpty()){
+			String[] params = thresholdParams.split(",");
+			if(params.length != 2)
+				throw new IllegalArgumentException("give the threshold parameters as -p thresholdParams=p1,p2");
+			detector.setThresholdParams(Double.parseDouble(params[0]), Double.parseDouble(params[1]));
+		}
+		detected = new Vector<Marker>();
+		next = 0;
+	}
+
+	@Benchmark
+	public int detect(){
+		detector.detect(recorded.get(next), detected, cp, SyntheticScene.MARKER_SIZE);
+		next = (next+1)%recorded.size();
+		return detected.size();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		detector.release();
+		for(int i=0;i<recorded.size();i++)
+			recorded.get(i).release();
+	}
+}
@@ -0,0 +1,126 @@
+package es.ava.aruco;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Each stage of MarkerDetector.detect alone, one benchmark per stage of
+ * DetectionMetrics, calling the same methods detect calls. A whole frame is
+ * detected in the set up, so each stage works on what the previous ones left.
+ * The frame is searched whole and in full resolution, as detect does by default,
+ * with the threshold method given, the corner refinement enabled and valid camera
+ * parameters. So the search in regions of interest and in a reduced image are not
+ * covered, nor the refinement of the corners found in it. The BOARD stage is
+ * BoardBenchmark.
+ * decode repeats the suppression of the candidates too close to each other, because
+ * the decoding overwrites it, see SuppressionBenchmark for its time alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StageBenchmark {
+	@Param({"480p", "720p", "1080p"})
+	public String resolution;
+
+	@Param({"0", "1", "10", "50"})
+	public int markers;
+
+	@Param({"ADPT_THRES"})
+	public MarkerDetector.thresSuppMethod thresholdMethod;
+
+	private MarkerDetector detector;
+	private CameraParameters cp;
+	private Mat frame, rgba;
+	private Vector<Marker> detected;
+	private int nCandidates;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException{
+		SyntheticScene.loadNative();
+		Size size = SyntheticScene.resolution(resolution);
+		frame = SyntheticScene.frame(size, markers, null);
+		rgba = new Mat();
+		Imgproc.cvtColor(frame, rgba, Imgproc.COLOR_GRAY2RGBA);
+		cp = SyntheticScene.camera(size);
+		detector = new MarkerDetector();
+		detector.setThresholdMethod(thresholdMethod);
+		detector.setCornerRefinement(true);
+		detected = new Vector<Marker>();
+		detector.detect(frame, detected, cp, SyntheticScene.MARKER_SIZE);
+		if(detected.size() != markers)
+			throw new IllegalStateException("found "+detected.size()+" of the "+markers+" markers of the frame");
+		nCandidates = filter();
+	}
+
+	@Benchmark
+	public Mat grey(){
+		detector.toGrey(rgba);
+		return rgba;
+	}
+
+	@Benchmark
+	public int threshold(){
+		int n = detector.prepareThreshold(frame);
+		for(int i=0;i<n;i++)
+			detector.threshold(i);
+		return n;
+	}
+
+	@Benchmark
+	public void contours(){
+		detector.findContours();
+	}
+
+	@Benchmark
+	public int filter(){
+		detector.clearCandidates();
+		detector.filterQuads(1, 0, 0, frame.cols(), SyntheticScene.MARKER_SIZE);
+		int n = detector.getCandidates();
+		detector.removeNearCandidates(n);
+		return n;
+	}
+
+	@Benchmark
+	public void decode(){
+		detector.removeNearCandidates(nCandidates);
+		detector.identifyCandidates(nCandidates);
+	}
+
+	@Benchmark
+	public void refine(){
+		detector.refineMarkers();
+	}
+
+	@Benchmark
+	public void pose(){
+		detector.calculateExtrinsics(detector.getNewMarkers(), cp, SyntheticScene.MARKER_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		detector.release();
+		frame.release();
+		rgba.release();
+	}
+}
@@ -0,0 +1,105 @@
+package es.ava.aruco;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The removal of the candidates too close to each other, alone: the grid of
+ * MarkerDetector against the comparison of every pair it replaced. The candidates
+ * are squares of random size and position in a 1080p frame, a tenth of them with a
+ * copy moved less than a pixel, as the inner and outer contours of a border give.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SuppressionBenchmark {
+	private static final double MIN_DISTANCE = 10; // as in MarkerDetector
+
+	@Param({"10", "100", "1000"})
+	public int candidates;
+
+	private float[] corners;
+	private int[] toRemove;
+	private MarkerDetector detector;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		SyntheticScene.loadNative();
+		Random random = new Random(42);
+		corners = new float[8*candidates];
+		for(int i=0;i<candidates;i++){
+			if(i > 0 && random.nextInt(10) == 0){
+				// a near duplicate of the previous candidate
+				for(int k=0;k<8;k++)
+					corners[8*i+k] = corners[8*(i-1)+k] + random.nextFloat() - 0.5f;
+				continue;
+			}
+			float side = 20 + 60*random.nextFloat();
+			float x = (1920-side)*random.nextFloat(), y = (1080-side)*random.nextFloat();
+			float[] square = {x, y, x+side, y, x+side, y+side, x, y+side};
+			System.arraycopy(square, 0, corners, 8*i, 8);
+		}
+		toRemove = new int[candidates];
+		detector = new MarkerDetector();
+		if(grid() != pairwise())
+			throw new IllegalStateException("the grid and the pairwise comparison remove different candidates");
+	}
+
+	@Benchmark
+	public int grid(){
+		return detector.suppressNearCandidates(corners, candidates);
+	}
+
+	@Benchmark
+	public int pairwise(){
+		int n = candidates;
+		for(int i=0;i<n;i++)
+			toRemove[i] = 0;
+		for(int i=0;i<n;i++)
+			for(int j=i+1;j<n;j++){
+				float dist = 0;
+				for(int k=0;k<4;k++){
+					float dx = corners[8*j+2*k]-corners[8*i+2*k];
+					float dy = corners[8*j+2*k+1]-corners[8*i+2*k+1];
+					dist += Math.sqrt(dx*dx+dy*dy);
+				}
+				dist = dist/4;
+				if(dist < MIN_DISTANCE){
+					if(perimeter(i) < perimeter(j))
+						toRemove[i] = 1;
+					else
+						toRemove[j] = 1;
+				}
+			}
+		int removed = 0;
+		for(int i=0;i<n;i++)
+			removed += toRemove[i];
+		return removed;
+	}
+
+	private double perimeter(int i){
+		double sum = 0;
+		for(int k=0;k<4;k++){
+			float dx = corners[8*i+2*k]-corners[8*i+2*((k+1)%4)];
+			float dy = corners[8*i+2*k+1]-corners[8*i+2*((k+1)%4)+1];
+			sum += Math.sqrt(dx*dx+dy*dy);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,162 @@
+package es.ava.aruco;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+/**
+ * Frames, cameras and markers built from scratch for the benchmarks. The markers are
+ * drawn upright on a white background, in a grid that covers the frame.
+ */
+final class SyntheticScene {
+	static final float MARKER_SIZE = 0.1f;
+	private static boolean loaded = false;
+
+	private SyntheticScene(){}
+
+	static synchronized void loadNative(){
+		if(!loaded){
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+			loaded = true;
+		}
+	}
+
+	/**
+	 * returns the size of a frame of the resolution given: 480p, 720p or 1080p.
+	 */
+	static Size resolution(String name){
+		if(name.equals("480p"))
+			return new Size(640, 480);
+		if(name.equals("720p"))
+			return new Size(1280, 720);
+		if(name.equals("1080p"))
+			return new Size(1920, 1080);
+		throw new IllegalArgumentException("unknown resolution "+name);
+	}
+
+	/**
+	 * Draws a grey frame with the markers of ids 0, 7, 14... of the aruco dictionary.
+	 * @param size the size of the frame.
+	 * @param nMarkers the number of markers.
+	 * @param corners receives the corners of each marker in the order of MarkerDetector,
+	 * 		8 floats per marker. It can be null.
+	 */
+	static Mat frame(Size size, int nMarkers, float[] corners){
+		int cols = (int)size.width, rows = (int)size.height;
+		Mat frame = new Mat(rows, cols, CvType.CV_8UC1, new Scalar(255));
+		if(nMarkers == 0)
+			return frame;
+		int gridCols = (int)Math.ceil(Math.sqrt(nMarkers*size.width/size.height));
+		int gridRows = (nMarkers+gridCols-1)/gridCols;
+		int cell = Math.min(cols/gridCols, rows/gridRows);
+		// a multiple of 7 pixels, with a white margin around every marker
+		int side = 7*(int)(0.7*cell/7);
+		if(side < 21)
+			throw new IllegalArgumentException(nMarkers+" markers do not fit in "+cols+"x"+rows);
+		for(int i=0;i<nMarkers;i++){
+			int x = (i%gridCols)*cell + (cell-side)/2;
+			int y = (i/gridCols)*cell + (cell-side)/2;
+			Mat marker = ArucoDictionary.getInstance().createMarkerImage(id(i), side);
+			Mat roi = frame.submat(y, y+side, x, x+side);
+			marker.copyTo(roi);
+			roi.release();
+			marker.release();
+			if(corners != null){
+				// the outer corners of the black border from the top-left, as the detector sorts them
+				float x0 = x-0.5f, y0 = y-0.5f, x1 = x+side-0.5f, y1 = y+side-0.5f;
+				corners[8*i] = x0;
+				corners[8*i+1] = y0;
+				corners[8*i+2] = x1;
+				corners[8*i+3] = y0;
+				corners[8*i+4] = x1;
+				corners[8*i+5] = y1;
+				corners[8*i+6] = x0;
+				corners[8*i+7] = y1;
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * returns the id of the i-th marker of the frames.
+	 */
+	static int id(int i){
+		return (7*i)%ArucoDictionary.getInstance().size();
+	}
+
+	/**
+	 * returns a camera without distortion and a field of view of about 60 degrees.
+	 * @throws IOException if the temporary file to read the parameters from can not be written.
+	 */
+	static CameraParameters camera(Size size) throws IOException{
+		double f = 0.9*size.width;
+		double[] values = {f, 0, size.width/2, 0, f, size.height/2, 0, 0, 1, 0, 0, 0, 0, 0};
+		File file = File.createTempFile("camera", ".csv");
+		try{
+			PrintWriter out = new PrintWriter(file);
+			for(int i=0;i<values.length;i++)
+				out.println(i+","+values[i]);
+			out.close();
+			CameraParameters cp = new CameraParameters();
+			cp.readFromFile(file.getPath());
+			return cp;
+		}
+		finally{
+			file.delete();
+		}
+	}
+
+	/**
+	 * Projects the corners of a square of side MARKER_SIZE, in the order of
+	 * MarkerDetector, with the pose given.
+	 * @param pose rotation matrix in row-major order followed by the translation.
+	 * @param cx position of the center of the square in the plane z=0.
+	 * @param cy
+	 */
+	static float[] project(double[] pose, double[] intrinsics, double cx, double cy){
+		double h = MARKER_SIZE/2;
+		float[] corners = new float[8];
+		for(int k=0;k<4;k++){
+			double X = cx + ((k==2 || k==3)? h:-h);
+			double Y = cy + ((k==1 || k==2)? h:-h);
+			double px = pose[0]*X + pose[1]*Y + pose[9];
+			double py = pose[3]*X + pose[4]*Y + pose[10];
+			double pz = pose[6]*X + pose[7]*Y + pose[11];
+			corners[2*k] = (float)(intrinsics[0]*px/pz + intrinsics[2]);
+			corners[2*k+1] = (float)(intrinsics[1]*py/pz + intrinsics[3]);
+		}
+		return corners;
+	}
+
+	/**
+	 * returns a pose looking at the plane z=0 from a distance of 1, slightly tilted.
+	 */
+	static double[] pose(){
+		double[] pose = new double[12];
+		SquarePoseSolver.toRotationMatrix(new double[]{0.3, -0.2, 0.1}, pose);
+		pose[9] = 0.02;
+		pose[10] = -0.01;
+		pose[11] = 1;
+		return pose;
+	}
+
+	/**
+	 * Creates a marker with the corners and id given, as if it had been detected.
+	 */
+	static Marker marker(float[] corners, int offset, int id){
+		Vector<Point> points = new Vector<Point>();
+		for(int k=0;k<4;k++)
+			points.add(new Point(corners[offset+2*k], corners[offset+2*k+1]));
+		Marker marker = new Marker(MARKER_SIZE, points);
+		marker.id = id;
+		return marker;
+	}
+}
@@ -0,0 +1,72 @@
+package es.ava.aruco;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The threshold of a whole frame with the methods of MarkerDetector, with its
+ * default parameters: a block of 7 pixels and a constant of 7. The threshold
+ * methods of the detector are compared on recorded frames by RecordedDetectBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ThresholdBenchmark {
+	@Param({"480p", "720p", "1080p"})
+	public String resolution;
+
+	private Mat frame, dst;
+	private IntegralThreshold integral;
+
+	@Setup(Level.Trial)
+	public void setUp(){
+		SyntheticScene.loadNative();
+		frame = SyntheticScene.frame(SyntheticScene.resolution(resolution), 10, null);
+		dst = new Mat();
+		integral = new IntegralThreshold();
+	}
+
+	@Benchmark
+	public Mat adaptive(){
+		Imgproc.adaptiveThreshold(frame, dst, 255.0, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+				Imgproc.THRESH_BINARY_INV, 7, 7);
+		return dst;
+	}
+
+	@Benchmark
+	public Mat integral(){
+		integral.setImage(frame, 7);
+		integral.threshold(7, 7, dst);
+		return dst;
+	}
+
+	@Benchmark
+	public Mat pyrDown(){
+		Imgproc.pyrDown(frame, dst);
+		return dst;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		frame.release();
+		dst.release();
+	}
+}
@@ -0,0 +1,25 @@
+package es.ava.aruco.replay;
+
+import java.io.IOException;
+
+import org.opencv.core.Mat;
+
+/**
+ * Sequence of recorded frames to replay, see ReplayRunner.
+ */
+public interface FrameSource {
+	/**
+	 * Reads the next frame.
+	 * @param frame receives the frame, grey (CV_8UC1) or RGBA (CV_8UC4).
+	 * @return false if there are no more frames.
+	 * @throws IOException
+	 */
+	boolean read(Mat frame) throws IOException;
+
+	/**
+	 * returns a name for the last frame read, to identify it in the output.
+	 */
+	String getName();
+
+	void close() throws IOException;
+}
@@ -0,0 +1,72 @@
+package es.ava.aruco.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Frames stored as images in a directory, read in the order of their names.
+ * Every file that imread can decode is a frame, the rest are skipped.
+ */
+public class ImageDirectorySource implements FrameSource {
+	private final File[] files;
+	private final boolean grey;
+	private final Mat bgr;
+	private int next;
+	private String name;
+
+	/**
+	 * @param dir the directory.
+	 * @param grey true to read the frames in grey, false to read them in RGBA.
+	 * @throws IOException if the directory can not be listed.
+	 */
+	public ImageDirectorySource(File dir, boolean grey) throws IOException{
+		File[] list = dir.listFiles();
+		if(list == null)
+			throw new IOException("can not list "+dir);
+		Arrays.sort(list);
+		files = list;
+		this.grey = grey;
+		bgr = new Mat();
+		next = 0;
+		name = null;
+	}
+
+	@Override
+	public boolean read(Mat frame) throws IOException{
+		while(next < files.length){
+			File file = files[next++];
+			if(!file.isFile())
+				continue;
+			Mat image = Highgui.imread(file.getPath(), grey? Highgui.IMREAD_GRAYSCALE : Highgui.IMREAD_COLOR);
+			if(image.empty()){
+				image.release();
+				continue;
+			}
+			if(grey)
+				image.copyTo(frame);
+			else{
+				image.copyTo(bgr);
+				Imgproc.cvtColor(bgr, frame, Imgproc.COLOR_BGR2RGBA);
+			}
+			image.release();
+			name = file.getName();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String getName(){
+		return name;
+	}
+
+	@Override
+	public void close(){
+		bgr.release();
+	}
+}
@@ -0,0 +1,61 @@
+package es.ava.aruco.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Frames recorded with RawFrameWriter.
+ */
+public class RawFrameSource implements FrameSource {
+	private final DataInputStream in;
+	private final String fileName;
+	private byte[] buffer;
+	private int frame;
+
+	public RawFrameSource(File file) throws IOException{
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+		fileName = file.getName();
+		buffer = new byte[0];
+		frame = -1;
+	}
+
+	@Override
+	public boolean read(Mat dst) throws IOException{
+		int rows;
+		try{
+			rows = in.readInt();
+		}
+		catch(EOFException e){
+			return false;
+		}
+		int cols = in.readInt();
+		int type = in.readInt();
+		if(CvType.depth(type) != CvType.CV_8U || rows < 0 || cols < 0)
+			throw new IOException("not a frame written by RawFrameWriter: "+fileName);
+		int size = rows*cols*CvType.channels(type); // 8 bits per channel
+		if(buffer.length != size)
+			buffer = new byte[size];
+		in.readFully(buffer);
+		dst.create(rows, cols, type);
+		dst.put(0, 0, buffer);
+		frame++;
+		return true;
+	}
+
+	@Override
+	public String getName(){
+		return fileName+"#"+frame;
+	}
+
+	@Override
+	public void close() throws IOException{
+		in.close();
+	}
+}
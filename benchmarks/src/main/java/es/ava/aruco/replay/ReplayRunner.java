@@ -0,0 +1,305 @@
+package es.ava.aruco.replay;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import es.ava.aruco.Board;
+import es.ava.aruco.BoardConfiguration;
+import es.ava.aruco.BoardDetector;
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.DetectionMetrics;
+import es.ava.aruco.DetectionMetrics.Stage;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.debug.HistogramSink;
+
+/**
+ * Runs the detector over recorded frames, without a device, and writes what was
+ * detected in each frame and how long it took as a line of CSV. It only needs the
+ * desktop build of OpenCV, so the detector can be tuned and compared between
+ * versions on any machine:
+ * <pre>
+ * ./gradlew :benchmarks:replay -PopencvLibPath=&lt;dir of libopencv_java2411&gt; \
+ *     -PreplayArgs='[options] &lt;frames&gt;'
+ * </pre>
+ * The frames are a directory of images or a file written by RawFrameWriter. Run it
+ * without arguments to see the options. The summary of the timings is written to
+ * the standard error at the end.
+ */
+public class ReplayRunner {
+	private static final Stage[] STAGES = Stage.values();
+
+	private final MarkerDetector detector;
+	private final BoardDetector boardDetector;
+	private final DetectionMetrics metrics;
+	private final HistogramSink histograms;
+	private final CameraParameters cp;
+	private final float markerSizeMeters;
+	private BoardConfiguration boardConf;
+	private final Vector<Marker> markers;
+	private final Board board;
+
+	/**
+	 * @param detector the detector, already configured.
+	 * @param cp the camera parameters, the markers have no pose if they are not valid.
+	 * @param markerSizeMeters the size of the markers.
+	 */
+	public ReplayRunner(MarkerDetector detector, CameraParameters cp, float markerSizeMeters){
+		this.detector = detector;
+		this.cp = cp;
+		this.markerSizeMeters = markerSizeMeters;
+		boardDetector = new BoardDetector();
+		histograms = new HistogramSink(1000);
+		metrics = new DetectionMetrics();
+		metrics.setSink(histograms);
+		detector.setMetrics(metrics);
+		boardDetector.setMetrics(metrics);
+		boardConf = null;
+		markers = new Vector<Marker>();
+		board = new Board();
+	}
+
+	/**
+	 * Sets the board to look for in every frame.
+	 * @param conf the configuration of the board, null for none.
+	 */
+	public void setBoard(BoardConfiguration conf){
+		boardConf = conf;
+	}
+
+	/**
+	 * returns the detector of the board, to set its options.
+	 */
+	public BoardDetector getBoardDetector(){
+		return boardDetector;
+	}
+
+	/**
+	 * returns the timings of the frames replayed.
+	 */
+	public HistogramSink getHistograms(){
+		return histograms;
+	}
+
+	/**
+	 * Detects the markers, and the board if any, in every frame of the source.
+	 * @param source the frames, it is not closed.
+	 * @param out receives a line of CSV per frame, after a header. null for none.
+	 * @return the number of frames replayed.
+	 * @throws IOException if the frames can not be read.
+	 */
+	public int run(FrameSource source, PrintStream out) throws IOException{
+		if(out != null)
+			out.println(header());
+		Mat frame = new Mat();
+		int n = 0;
+		try{
+			while(source.read(frame)){
+				detector.detect(frame, markers, cp, markerSizeMeters);
+				float probability = -1;
+				if(boardConf != null)
+					probability = boardDetector.detect(markers, boardConf, board, cp, markerSizeMeters);
+				metrics.endFrame();
+				if(out != null)
+					out.println(line(n, source.getName(), probability));
+				n++;
+			}
+		}
+		finally{
+			frame.release();
+		}
+		return n;
+	}
+
+	private static String header(){
+		StringBuilder sb = new StringBuilder("frame,name,markers,ids,contours,candidates");
+		for(int s=0;s<STAGES.length;s++)
+			sb.append(',').append(STAGES[s].name().toLowerCase()).append("_ns");
+		sb.append(",total_ns,marker_error,board_probability,board_error");
+		return sb.toString();
+	}
+
+	private String line(int n, String name, float probability){
+		StringBuilder sb = new StringBuilder();
+		sb.append(n).append(',').append(name).append(',').append(metrics.getMarkers()).append(',');
+		double sum = 0;
+		int posed = 0;
+		for(int i=0;i<metrics.getMarkers();i++){
+			if(i > 0)
+				sb.append(' ');
+			sb.append(metrics.getMarkerId(i));
+			if(metrics.getReprojectionError(i) >= 0){
+				sum += metrics.getReprojectionError(i);
+				posed++;
+			}
+		}
+		sb.append(',').append(metrics.getContours()).append(',').append(metrics.getCandidates());
+		for(int s=0;s<STAGES.length;s++)
+			sb.append(',').append(metrics.getStageNanos(STAGES[s]));
+		sb.append(',').append(metrics.getTotalNanos());
+		sb.append(',').append(String.format(Locale.US, "%.4f", posed == 0? -1 : sum/posed));
+		sb.append(',').append(String.format(Locale.US, "%.4f", probability));
+		sb.append(',').append(String.format(Locale.US, "%.4f", metrics.getBoardReprojectionError()));
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a board configuration from a text file: a line with the width, the height,
+	 * the size of the markers and the distance between them, both in pixels, followed
+	 * by the ids of the markers, row by row.
+	 * @throws IOException if the file can not be read or is not well formed.
+	 */
+	public static BoardConfiguration readBoard(File file) throws IOException{
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try{
+			StringBuilder text = new StringBuilder();
+			String line;
+			while((line = br.readLine()) != null)
+				text.append(line).append(' ');
+			StringTokenizer st = new StringTokenizer(text.toString(), " \t,");
+			int width = Integer.parseInt(st.nextToken());
+			int height = Integer.parseInt(st.nextToken());
+			int sizePix = Integer.parseInt(st.nextToken());
+			int distancePix = Integer.parseInt(st.nextToken());
+			int[][] ids = new int[height][width];
+			for(int y=0;y<height;y++)
+				for(int x=0;x<width;x++)
+					ids[y][x] = Integer.parseInt(st.nextToken());
+			return new BoardConfiguration(width, height, ids, sizePix, distancePix);
+		}
+		catch(RuntimeException e){
+			throw new IOException("bad board file "+file+": "+e);
+		}
+		finally{
+			br.close();
+		}
+	}
+
+	private static final String USAGE =
+			"usage: ReplayRunner [options] <directory of images | file written by RawFrameWriter>\n"+
+			"  -c <file>      camera parameters, as read by CameraParameters.readFromFile\n"+
+			"  -s <meters>    size of the markers, 0.1 by default\n"+
+			"  -b <file>      board to look for, see ReplayRunner.readBoard\n"+
+			"  -o <file>      where to write the CSV, the standard output by default\n"+
+			"  -grey          read the images in grey instead of RGBA\n"+
+			"  -threads <n>   verification threads, 0 for one per core\n"+
+			"  -errors <n>    wrong bits corrected in the codes\n"+
+			"  -min <pixels>  minimum size of the markers, searched in a reduced image\n"+
+			"  -thres <method>       FIXED_THRES, ADPT_THRES (the default), CANNY or INTEGRAL_THRES\n"+
+			"  -thresParams <p1,p2>  parameters of the threshold, see MarkerDetector.setThresholdParams\n"+
+			"  -blocks <a,b,...>     block sizes of INTEGRAL_THRES, each one thresholded\n"+
+			"  -refine        refine the corners\n"+
+			"  -predict       search only around the markers of the previous frame\n"+
+			"  -tile          sample the codes from the frame instead of warping them\n"+
+			"  -square        calculate the poses with SquarePoseSolver\n"+
+			"  -track         start the poses from the ones of the previous frame\n"+
+			"  -pooling       recycle the markers between frames\n"+
+			"  -robust        discard the markers that disagree with the pose of the board";
+
+	public static void main(String[] args) throws IOException{
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		MarkerDetector detector = new MarkerDetector();
+		CameraParameters cp = new CameraParameters();
+		float size = 0.1f;
+		File boardFile = null, outFile = null, frames = null;
+		boolean grey = false, robust = false, track = false;
+		try{
+			for(int i=0;i<args.length;i++){
+				String a = args[i];
+				if(a.equals("-c")){
+					File file = new File(args[++i]);
+					if(!file.isFile())
+						throw new IllegalArgumentException("no camera parameters in "+file);
+					cp.readFromFile(file.getPath());
+				}
+				else if(a.equals("-s"))
+					size = Float.parseFloat(args[++i]);
+				else if(a.equals("-b"))
+					boardFile = new File(args[++i]);
+				else if(a.equals("-o"))
+					outFile = new File(args[++i]);
+				else if(a.equals("-grey"))
+					grey = true;
+				else if(a.equals("-threads"))
+					detector.setVerificationThreads(Integer.parseInt(args[++i]));
+				else if(a.equals("-errors"))
+					detector.setMaxCodeErrors(Integer.parseInt(args[++i]));
+				else if(a.equals("-min"))
+					detector.setMinMarkerSize(Integer.parseInt(args[++i]));
+				else if(a.equals("-thres"))
+					detector.setThresholdMethod(MarkerDetector.thresSuppMethod.valueOf(args[++i]));
+				else if(a.equals("-thresParams")){
+					String[] params = args[++i].split(",");
+					if(params.length != 2)
+						throw new IllegalArgumentException("-thresParams needs 2 values");
+					detector.setThresholdParams(Double.parseDouble(params[0]), Double.parseDouble(params[1]));
+				}
+				else if(a.equals("-blocks")){
+					String[] sizes = args[++i].split(",");
+					int[] blocks = new int[sizes.length];
+					for(int b=0;b<sizes.length;b++){
+						blocks[b] = Integer.parseInt(sizes[b]);
+						if(blocks[b] < 3 || blocks[b]%2 == 0)
+							throw new IllegalArgumentException("the block sizes must be odd and 3 or more");
+					}
+					detector.setThresholdBlockSizes(blocks);
+				}
+				else if(a.equals("-refine"))
+					detector.setCornerRefinement(true);
+				else if(a.equals("-predict"))
+					detector.setRoiPrediction(true);
+				else if(a.equals("-tile"))
+					detector.setTileSampling(true);
+				else if(a.equals("-square"))
+					detector.setSquarePoseSolver(true);
+				else if(a.equals("-track"))
+					track = true;
+				else if(a.equals("-pooling"))
+					detector.setPooling(true);
+				else if(a.equals("-robust"))
+					robust = true;
+				else if(a.startsWith("-") || frames != null)
+					throw new IllegalArgumentException("unknown option "+a);
+				else
+					frames = new File(a);
+			}
+			if(frames == null)
+				throw new IllegalArgumentException("no frames given");
+		}
+		catch(RuntimeException e){
+			// a bad number or a missing value as well
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		detector.setPoseTracking(track);
+
+		ReplayRunner runner = new ReplayRunner(detector, cp, size);
+		if(boardFile != null)
+			runner.setBoard(readBoard(boardFile));
+		runner.getBoardDetector().setPoseTracking(track);
+		runner.getBoardDetector().setRobustPose(robust);
+		FrameSource source = frames.isDirectory()? new ImageDirectorySource(frames, grey) : new RawFrameSource(frames);
+		PrintStream out = outFile == null? System.out : new PrintStream(new FileOutputStream(outFile));
+		try{
+			runner.run(source, out);
+		}
+		finally{
+			source.close();
+			if(out != System.out)
+				out.close();
+			detector.release();
+		}
+		System.err.println(runner.getHistograms());
+	}
+}
@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * Stand-in to compile the library outside Android, it only prints to stderr.
+ */
+public final class Log {
+	private Log(){}
+
+	public static int d(String tag, String msg){
+		return println(tag, msg);
+	}
+
+	public static int i(String tag, String msg){
+		return println(tag, msg);
+	}
+
+	public static int w(String tag, String msg){
+		return println(tag, msg);
+	}
+
+	public static int e(String tag, String msg){
+		return println(tag, msg);
+	}
+
+	private static int println(String tag, String msg){
+		System.err.println(tag+": "+msg);
+		return 0;
+	}
+}
@@ -0,0 +1,9 @@
+package min3d.core;
+
+/**
+ * Stand-in to compile the library outside Android, see the min3d sources of the app.
+ */
+public class Object3d {
+	public void setModelViewMatrix(double[] matrix){
+	}
+}
@@ -0,0 +1,7 @@
+package min3d.core;
+
+/**
+ * Stand-in to compile the library outside Android, see the min3d sources of the app.
+ */
+public class Object3dContainer extends Object3d {
+}
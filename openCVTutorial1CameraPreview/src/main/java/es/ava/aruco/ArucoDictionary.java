@@ -0,0 +1,43 @@
+package es.ava.aruco;
+
+/**
+ * The original dictionary of aruco: 5x5 bits and 1024 ids, each row of the code
+ * being one of 4 words that gives 2 bits of the id. It is decoded row by row with
+ * CodeDecoder. Counting the rotations its minimum distance is 0: a code is the
+ * same as one of its own rotations, so its rotation is ambiguous, and no error can
+ * be corrected with guarantees, see TableDictionary for that.
+ */
+public final class ArucoDictionary extends Dictionary {
+	private static final ArucoDictionary INSTANCE = new ArucoDictionary();
+
+	private ArucoDictionary(){}
+
+	public static ArucoDictionary getInstance(){
+		return INSTANCE;
+	}
+
+	@Override
+	public int getBits(){
+		return 5;
+	}
+
+	@Override
+	public int size(){
+		return CodeDecoder.N_IDS;
+	}
+
+	@Override
+	public long getCode(int id){
+		return CodeDecoder.code(id);
+	}
+
+	@Override
+	public int decode(long code, int maxErrors){
+		return CodeDecoder.decode((int)code, maxErrors);
+	}
+
+	@Override
+	public int getMinDistance(){
+		return 0;
+	}
+}
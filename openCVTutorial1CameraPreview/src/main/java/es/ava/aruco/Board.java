@@ -27,6 +27,8 @@ public class Board extends Vector<Marker>{
 	protected BoardConfiguration conf;
 	protected Mat Rvec, Tvec;
 	protected float markerSizeMeters;
+	protected double reprojectionError; // of the markers used to calculate the pose, in pixels
+	protected Vector<Marker> rejected; // markers of the board that disagree with the pose
 	private Object3d object;
 	
 	// constructor
@@ -34,6 +36,8 @@ public class Board extends Vector<Marker>{
 		Rvec = new Mat(3,1,CvType.CV_64FC1);
 		Tvec = new Mat(3,1,CvType.CV_64FC1);
 		markerSizeMeters = -1;
+		reprojectionError = -1;
+		rejected = new Vector<Marker>();
 	}
 	
 	// other methods
@@ -75,6 +79,23 @@ public class Board extends Vector<Marker>{
 		this.object.setModelViewMatrix(matrix);
 	}
 	
+	/**
+	 * returns the root mean square distance in pixels between the corners of the
+	 * markers used to calculate the pose and their reprojection.
+	 * @return -1 if the pose was not calculated.
+	 */
+	public double getReprojectionError(){
+		return reprojectionError;
+	}
+	
+	/**
+	 * returns the markers whose id belongs to the board but that were discarded
+	 * because they do not agree with the pose of the rest, see BoardDetector.setRobustPose.
+	 */
+	public Vector<Marker> getRejected(){
+		return rejected;
+	}
+	
 	public void draw3dAxis(Mat frame, CameraParameters cp, Scalar color){
 		Utils.draw3dAxis(frame, cp, color, 2*this.get(0).ssize, Rvec, Tvec);
 	}
@@ -1,15 +1,13 @@
 package es.ava.aruco;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Vector;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
-import org.opencv.core.Point;
-import org.opencv.core.Point3;
 
 /**
  * Class to carry out a board detection. Its only method is detect.
@@ -17,6 +15,50 @@ import org.opencv.core.Point3;
  *
  */
 public class BoardDetector {
+	// pose of the board found in the previous call, used as the initial guess of the next one
+	private boolean poseTracking;
+	private BoardConfiguration prevConf;
+	private Mat prevRvec, prevTvec;
+	
+	// the last board configuration compiled and the buffers to build its points
+	private BoardModel model;
+	private int[] cellMarker;
+	private float[] objBuffer, imgBuffer;
+	private MatOfPoint3f objPointsMat;
+	private MatOfPoint2f imgPointsMat;
+	private float[] corners;
+	private int[] markerIndex; // index in detectedMarkers of the markers in the buffers
+	
+	// robust pose, the markers that disagree with the rest are discarded
+	private boolean robust;
+	private RobustBoardPose robustPose;
+	private boolean[] inliers;
+	private double[] pose, rvec, tvec;
+	
+	// timings and counts of each frame, null if not wanted
+	private DetectionMetrics metrics;
+	
+	public BoardDetector(){
+		poseTracking = false;
+		prevConf = null;
+		prevRvec = new Mat(3,1,CvType.CV_64FC1);
+		prevTvec = new Mat(3,1,CvType.CV_64FC1);
+		model = null;
+		cellMarker = new int[0];
+		objBuffer = new float[12*16];
+		imgBuffer = new float[8*16];
+		objPointsMat = new MatOfPoint3f();
+		imgPointsMat = new MatOfPoint2f();
+		corners = new float[8];
+		markerIndex = new int[16];
+		robust = false;
+		robustPose = new RobustBoardPose();
+		inliers = new boolean[16];
+		pose = new double[12];
+		rvec = new double[3];
+		tvec = new double[3];
+		metrics = null;
+	}
 	
 	/**
 	 * Determines whether a set of markers constitutes a board or not. 
@@ -32,66 +74,209 @@ public class BoardDetector {
 	 */
 	public float detect(Vector<Marker> detectedMarkers, BoardConfiguration conf, Board bDetected,
 			CameraParameters cp, float markerSizeMeters) throws CvException{
+		return detect(detectedMarkers, conf, bDetected, cp, markerSizeMeters, detectedMarkers.size());
+	}
+	
+	/**
+	 * Same as above with the markers of the frame already filtered, as MultiBoardDetector
+	 * does. The pose is only calculated if more than one marker was detected in the
+	 * frame, so the number of them is given to get the same result as with all of them.
+	 * @param frameMarkers the number of markers detected in the frame.
+	 */
+	float detect(Vector<Marker> detectedMarkers, BoardConfiguration conf, Board bDetected,
+			CameraParameters cp, float markerSizeMeters, int frameMarkers) throws CvException{
+		long start = metrics == null? 0 : System.nanoTime();
 		bDetected.clear();
+		BoardModel model = getModel(conf, markerSizeMeters);
 		// find among the detected markers those who belong to the board configuration
-		int height = conf.height;
-		int width = conf.width;
-		int[][] detected = new int[width][height];// indices of the markers in the vector detectedMarkers
-		for(int i=0;i<width;i++)
-			for(int j=0;j<height;j++)
-				detected[i][j] = -1;
+		// indices of the markers in the vector detectedMarkers, by cell
+		if(cellMarker.length < model.nCells){
+			cellMarker = new int[model.nCells];
+			for(int c=0;c<model.nCells;c++)
+				cellMarker[c] = -1;
+		}
 		int nMarkInBoard = 0;// number of detected markers
+		int minCell = model.nCells, maxCell = -1;
 		for(int i=0;i<detectedMarkers.size();i++){
-			boolean found = false;
-			int id = detectedMarkers.get(i).id;
-			// find it
-	        for(int j=0;j<height && ! found;j++)
-	            for(int k=0;k<width && ! found;k++)
-				if(conf.markersId[j][k] == id){
-					detected[j][k] = i;
-					nMarkInBoard++;
-					found = true;
-					bDetected.add(detectedMarkers.get(i));
-					if(markerSizeMeters > 0)
-						bDetected.lastElement().ssize = markerSizeMeters;
-				}
+			int cell = model.cellOf(detectedMarkers.get(i).id);
+			if(cell == -1)
+				continue;
+			cellMarker[cell] = i;
+			minCell = Math.min(minCell, cell);
+			maxCell = Math.max(maxCell, cell);
+			nMarkInBoard++;
+			bDetected.add(detectedMarkers.get(i));
+			if(markerSizeMeters > 0)
+				bDetected.lastElement().ssize = markerSizeMeters;
 		}
 		bDetected.conf = conf;
 		if(markerSizeMeters!=-1)
 			bDetected.markerSizeMeters = markerSizeMeters;
 		// calculate extrinsics
-		if(cp.isValid() && markerSizeMeters>0 && detectedMarkers.size()>1){
-			// create necessary matrix
-			List<Point3> objPoints = new ArrayList<Point3>();
-			List<Point> imgPoints = new ArrayList<Point>();
-			// size in meters of the distance between markers
-			float markerDistanceMeters = (conf.markerDistancePix) * markerSizeMeters / (conf.markerSizePix);
-
-	        for(int y=0;y<height;y++)
-	            for(int x=0;x<width;x++) {
-					if(detected[y][x] != -1){
-						imgPoints.addAll(detectedMarkers.get(detected[y][x]).toList());
-						
-						// translation to put the origin in the center
-	                    float TX=-(  ((detected.length-1)*(markerDistanceMeters+markerSizeMeters) +markerSizeMeters)/2);
-	                    float TY=-(  ((detected.length-1)*(markerDistanceMeters+markerSizeMeters) +markerSizeMeters)/2);
-	                    //points in real reference system. We see the center in the bottom-left corner
-	                    float AY=x*(markerDistanceMeters+markerSizeMeters ) +TY;
-	                    float AX=y*(markerDistanceMeters+markerSizeMeters ) +TX;
-	                    objPoints.add(new Point3(AX,AY,0));
-	                    objPoints.add(new Point3(AX,AY+markerSizeMeters, 0));
-	                    objPoints.add(new Point3(AX+markerSizeMeters,AY+markerSizeMeters,0));
-	                    objPoints.add(new Point3(AX+markerSizeMeters,AY,0));
+		boolean posed = false;
+		bDetected.rejected.clear();
+		bDetected.reprojectionError = -1;
+		if(cp.isValid() && markerSizeMeters>0 && frameMarkers>1 && nMarkInBoard>0){
+			// the points of the markers found, row by row, copied to the mats in a single call
+			ensureBuffers(nMarkInBoard);
+			int n = 0;
+			for(int cell=minCell;cell<=maxCell;cell++)
+				if(cellMarker[cell] != -1){
+					Marker marker = detectedMarkers.get(cellMarker[cell]);
+					// the corners are put in the order of the code of the marker, as the board is
+					marker.getCorners(corners, 0);
+					int rot = marker.getRotations();
+					for(int k=0;k<4;k++){
+						imgBuffer[8*n+2*k] = corners[2*((k+4-rot)%4)];
+						imgBuffer[8*n+2*k+1] = corners[2*((k+4-rot)%4)+1];
 					}
-			}
-	        // TODO get the opencv calls out of the loops
-	        MatOfPoint3f objPointsMat = new MatOfPoint3f();
-	        objPointsMat.fromList(objPoints);
-	        MatOfPoint2f imgPointsMat = new MatOfPoint2f();
-	        imgPointsMat.fromList(imgPoints);
-	        Calib3d.solvePnP(objPointsMat, imgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(), bDetected.Rvec, bDetected.Tvec);
-//	        Utils.rotateXAxis(bDetected.Rvec); rotated later, in getModelViewMatrix
+					System.arraycopy(model.objCorners, 12*cell, objBuffer, 12*n, 12);
+					markerIndex[n] = cellMarker[cell];
+					n++;
+				}
+	        // start from the pose of the previous frame if the same board was found in it
+	        boolean guess = poseTracking && prevConf == conf;
+	        if(guess){
+	        	prevRvec.copyTo(bDetected.Rvec);
+	        	prevTvec.copyTo(bDetected.Tvec);
+	        }
+	        double[] intrinsics = cp.getIntrinsics();
+	        if(robust){
+	        	// keep only the markers that agree with the best hypothesis
+	        	int nInliers = robustPose.select(imgBuffer, objBuffer, n, intrinsics, markerSizeMeters,
+	        			guess? toPose(prevRvec, prevTvec, pose) : null, inliers, pose);
+	        	int m = 0;
+	        	for(int i=0;i<n;i++){
+	        		if(nInliers > 0 && inliers[i]){
+	        			System.arraycopy(imgBuffer, 8*i, imgBuffer, 8*m, 8);
+	        			System.arraycopy(objBuffer, 12*i, objBuffer, 12*m, 12);
+	        			m++;
+	        		}
+	        		else{
+	        			Marker marker = detectedMarkers.get(markerIndex[i]);
+	        			bDetected.remove(marker);
+	        			bDetected.rejected.add(marker);
+	        		}
+	        	}
+	        	n = m;
+	        	nMarkInBoard = m;
+	        	if(n > 0){
+	        		// the best hypothesis is the starting point of the final solution
+	        		SquarePoseSolver.toRotationVector(pose, rvec);
+	        		bDetected.Rvec.put(0, 0, rvec);
+	        		bDetected.Tvec.put(0, 0, pose[9], pose[10], pose[11]);
+	        		guess = true;
+	        	}
+	        }
+	        if(n > 0){
+	        	objPointsMat.create(4*n, 1, CvType.CV_32FC3);
+	        	objPointsMat.put(0, 0, objBuffer);
+	        	imgPointsMat.create(4*n, 1, CvType.CV_32FC2);
+	        	imgPointsMat.put(0, 0, imgBuffer);
+	        	Calib3d.solvePnP(objPointsMat, imgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(), bDetected.Rvec, bDetected.Tvec,
+	        			guess, Calib3d.ITERATIVE);
+//	        	Utils.rotateXAxis(bDetected.Rvec); rotated later, in getModelViewMatrix
+	        	bDetected.reprojectionError = RobustBoardPose.reprojectionError(toPose(bDetected.Rvec, bDetected.Tvec, pose),
+	        			imgBuffer, objBuffer, n, null, intrinsics);
+	        	if(poseTracking){
+	        		bDetected.Rvec.copyTo(prevRvec);
+	        		bDetected.Tvec.copyTo(prevTvec);
+	        	}
+	        	posed = true;
+	        }
+		}
+		prevConf = posed? conf : null;
+		// leave the cells empty for the next call
+		for(int cell=minCell;cell<=maxCell;cell++)
+			cellMarker[cell] = -1;
+		if(metrics != null){
+			metrics.lap(DetectionMetrics.Stage.BOARD, start);
+			for(int i=0;i<bDetected.rejected.size();i++)
+				metrics.reject(DetectionMetrics.Rejection.BOARD_OUTLIER);
+			if(posed)
+				metrics.setBoardReprojectionError(bDetected.reprojectionError);
 		}
 		return ((float)nMarkInBoard/(float)(conf.width*conf.height));
 	}
+	
+	/**
+	 * Enables or disables starting the calculation of the pose of the board from the
+	 * pose found in the previous call, when it was the same board.
+	 * @param enable true to use the previous pose, false by default.
+	 */
+	public void setPoseTracking(boolean enable){
+		poseTracking = enable;
+		prevConf = null;
+	}
+	
+	public boolean isPoseTracking(){
+		return poseTracking;
+	}
+	
+	/**
+	 * Enables or disables the robust calculation of the pose. When enabled each marker
+	 * of the board gives a hypothesis of its pose, as does the previous pose if pose
+	 * tracking is enabled, and only the markers that agree with the best one are used
+	 * to calculate the pose. The rest are moved from the board to Board.getRejected
+	 * and do not count in the value returned by detect.
+	 * @param enable true to discard the markers that disagree, false by default.
+	 */
+	public void setRobustPose(boolean enable){
+		robust = enable;
+	}
+	
+	public boolean isRobustPose(){
+		return robust;
+	}
+	
+	/**
+	 * Sets the maximum mean distance in pixels between the corners of a marker and their
+	 * reprojection with the pose of the board for the marker to be used. 3 by default.
+	 */
+	public void setRobustThreshold(double pixels){
+		robustPose.setThreshold(pixels);
+	}
+	
+	public double getRobustThreshold(){
+		return robustPose.getThreshold();
+	}
+	
+	/**
+	 * Sets the object that receives the time spent in detect and the markers rejected,
+	 * usually the same given to MarkerDetector.setMetrics so they are counted in its
+	 * frame. It must not be shared by detectors used from different threads.
+	 * @param metrics the metrics to fill, null by default to measure nothing.
+	 */
+	public void setMetrics(DetectionMetrics metrics){
+		this.metrics = metrics;
+	}
+	
+	public DetectionMetrics getMetrics(){
+		return metrics;
+	}
+	
+	// the board configuration is compiled only when it or the size of the markers change
+	private BoardModel getModel(BoardConfiguration conf, float markerSizeMeters){
+		if(model == null || !model.matches(conf, markerSizeMeters))
+			model = new BoardModel(conf, markerSizeMeters);
+		return model;
+	}
+	
+	private void ensureBuffers(int nMarkers){
+		if(imgBuffer.length < 8*nMarkers){
+			imgBuffer = new float[16*nMarkers];
+			objBuffer = new float[24*nMarkers];
+			markerIndex = new int[2*nMarkers];
+			inliers = new boolean[2*nMarkers];
+		}
+	}
+	
+	// reads a pose given by solvePnP as a rotation matrix followed by the translation
+	private double[] toPose(Mat r, Mat t, double[] dst){
+		r.get(0, 0, rvec);
+		t.get(0, 0, tvec);
+		SquarePoseSolver.toRotationMatrix(rvec, dst);
+		System.arraycopy(tvec, 0, dst, 9, 3);
+		return dst;
+	}
 }
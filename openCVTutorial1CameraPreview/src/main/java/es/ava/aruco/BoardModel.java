@@ -0,0 +1,69 @@
+package es.ava.aruco;
+
+/**
+ * A board configuration compiled for a marker size, so finding the markers of the
+ * board and building the points to calculate its pose needs no search nor any
+ * calculation per frame. It holds a hash from the ids to the cells of the board
+ * and the 3d coordinates of the 4 corners of every cell.
+ * The origin is in the center of the board, the cells are ordered row by row.
+ */
+class BoardModel {
+	final BoardConfiguration conf;
+	final float markerSizeMeters;
+	private final int[][] markersId; // the ids compiled, the configuration may be given new ones
+	final int nCells;
+	// 3d corners of each cell, 12 floats per cell: [x1 y1 z1 ... x4 y4 z4]
+	final float[] objCorners;
+
+	private final IdTable cells; // the cell of each id
+
+	BoardModel(BoardConfiguration conf, float markerSizeMeters){
+		this.conf = conf;
+		this.markerSizeMeters = markerSizeMeters;
+		markersId = conf.markersId;
+		nCells = conf.width*conf.height;
+		cells = new IdTable(nCells);
+		objCorners = new float[12*nCells];
+
+		// size in meters of the distance between markers
+		float markerDistanceMeters = (conf.markerDistancePix) * markerSizeMeters / (conf.markerSizePix);
+		float step = markerDistanceMeters+markerSizeMeters;
+		// translation to put the origin in the center
+		float TX = -((conf.height-1)*step + markerSizeMeters)/2;
+		float TY = -((conf.width-1)*step + markerSizeMeters)/2;
+		for(int y=0;y<conf.height;y++)
+			for(int x=0;x<conf.width;x++){
+				int cell = y*conf.width+x;
+				// a repeated id belongs to its first cell, as the search it replaces did
+				int id = conf.markersId[y][x];
+				if(id >= 0 && cells.get(id) == -1)
+					cells.put(id, cell);
+				//points in real reference system. We see the center in the bottom-left corner
+				float AX = y*step + TX;
+				float AY = x*step + TY;
+				setCorner(cell, 0, AX, AY);
+				setCorner(cell, 1, AX, AY+markerSizeMeters);
+				setCorner(cell, 2, AX+markerSizeMeters, AY+markerSizeMeters);
+				setCorner(cell, 3, AX+markerSizeMeters, AY);
+			}
+	}
+
+	/**
+	 * returns the cell of the marker with the id given.
+	 * @return the cell as row*width+column, -1 if the marker is not in the board.
+	 */
+	int cellOf(int id){
+		return cells.get(id);
+	}
+
+	boolean matches(BoardConfiguration conf, float markerSizeMeters){
+		return this.conf == conf && markersId == conf.markersId && this.markerSizeMeters == markerSizeMeters;
+	}
+
+	private void setCorner(int cell, int corner, float x, float y){
+		int i = 12*cell+3*corner;
+		objCorners[i] = x;
+		objCorners[i+1] = y;
+		objCorners[i+2] = 0;
+	}
+}
@@ -33,10 +33,12 @@ public class CameraParameters {
 	private Mat cameraMatrix;
 	private MatOfDouble distorsionMatrix;
 	private Size camSize;
+	private double[] intrinsics; // read from the matrices when first needed
 	
 	public CameraParameters(){
 		cameraMatrix = new Mat(3,3,CvType.CV_32FC1);
 		distorsionMatrix = new MatOfDouble();
+		intrinsics = null;
 	}
 	
     /**Indicates whether this object is valid
@@ -57,21 +59,67 @@ public class CameraParameters {
 		return distorsionMatrix;
 	}
 	
+	/**
+	 * returns the parameters in java as [fx fy cx cy k1 k2 p1 p2 k3], so they can be
+	 * used without native calls. They are read from the matrices the first time and
+	 * kept until the parameters are read or resized again, so changes made directly
+	 * to the Mats given by getCameraMatrix and getDistCoeff are not seen.
+	 * The array must not be modified.
+	 */
+	public double[] getIntrinsics(){
+		if(intrinsics == null){
+			float[] cam = new float[9];
+			cameraMatrix.get(0, 0, cam);
+			double[] dist = distorsionMatrix.toArray();
+			double[] in = new double[9];
+			in[0] = cam[0];
+			in[1] = cam[4];
+			in[2] = cam[2];
+			in[3] = cam[5];
+			for(int i=0;i<5 && i<dist.length;i++)
+				in[4+i] = dist[i];
+			intrinsics = in;
+		}
+		return intrinsics;
+	}
+	
+	/**
+	 * Sets the size of the images the parameters were calibrated with, needed by
+	 * resize. The file read by readFromFile does not hold it.
+	 */
+	public void setCamSize(Size size){
+		camSize = size;
+	}
+
+	/**
+	 * returns the size of the images the parameters are for, null if unknown.
+	 */
+	public Size getCamSize(){
+		return camSize;
+	}
+	
+	/**
+	 * Adapts the parameters to images of the size given. If the size they were
+	 * calibrated with is unknown they are assumed to be for this size and are kept.
+	 */
 	public void resize(Size size) throws CPException{
 	    if (!isValid()) 
 	    	throw new CPException("invalid object CameraParameters::resize");
-	    if (size == camSize)
+	    if (camSize == null || size.equals(camSize)){
+	    	camSize = size.clone();
 	    	return;
-	    //now, read the camera size
+	    }
 	    //resize the camera parameters to fit this image size
 	    float AxFactor= (float)(size.width)/ (float)(camSize.width);
 	    float AyFactor= (float)(size.height)/ (float)(camSize.height);
 		float[] current = new float[9];
 	    cameraMatrix.get(0, 0, current);
 		float[] buff = {current[0]*AxFactor, current[1],          current[2]*AxFactor,
-				        current[3],          current[4]*AyFactor, current[5],
+				        current[3],          current[4]*AyFactor, current[5]*AyFactor,
 				        current[6],          current[7],          current[8]};
 		cameraMatrix.put(0, 0, buff);
+		camSize = size.clone();
+		intrinsics = null;
 	}
 	
 //	public void readFromXML(String filepath){
@@ -135,6 +183,8 @@ public class CameraParameters {
                                    matricies.get(12),
                                    matricies.get(13)};
             distorsionMatrix.fromArray(distArray);
+            camSize = null;
+            intrinsics = null;
 
         } catch (IOException e) {
                 Log.e("IOException: ", e.getMessage());
@@ -4,7 +4,8 @@ import android.util.Log;
 
 /**
  * The code stored as matrix of int represents the inside content of a marker.
- * It will have 7x7 dimensions.
+ * It will have 7x7 dimensions by default, the size of the grid of the dictionary
+ * otherwise, see Dictionary.
  * 0->black
  * 1->white
  *
@@ -13,7 +14,21 @@ public class Code {// TODO check if the parameters are in range
 	protected int[][] code;
 	
 	protected Code(){
-		code = new int[7][7];
+		this(7);
+	}
+
+	/**
+	 * @param size the cells per side, border included.
+	 */
+	protected Code(int size){
+		code = new int[size][size];
+	}
+
+	/**
+	 * returns the cells per side, border included.
+	 */
+	public int getSize(){
+		return code.length;
 	}
 	
 	protected void set(int x, int y, int value){
@@ -24,20 +39,48 @@ public class Code {// TODO check if the parameters are in range
 		return code[x][y];
 	}
 	
+	/**
+	 * packs the 5x5 cells inside the border in an int, row by row, the first
+	 * column of each row being the most significant bit. See CodeDecoder.
+	 * @return the 25 bits of the code.
+	 */
+	protected int toInt(){
+		int bits = 0;
+		for(int i=1;i<6;i++)
+			for(int j=1;j<6;j++)
+				bits = (bits<<1) | code[i][j];
+		return bits;
+	}
+
+	/**
+	 * packs the cells inside the border in a long in the same order as toInt.
+	 * See Dictionary.
+	 * @return the (size-2)^2 bits of the code.
+	 */
+	protected long toLong(){
+		int n = code.length-1;
+		long bits = 0;
+		for(int i=1;i<n;i++)
+			for(int j=1;j<n;j++)
+				bits = (bits<<1) | code[i][j];
+		return bits;
+	}
+	
 	static protected Code rotate(Code in){
-		Code out = new Code();
-		for(int i=0;i<7;i++)
-			for(int j=0;j<7;j++){
-				out.code[i][j] = in.code[6-j][i];
+		int n = in.code.length;
+		Code out = new Code(n);
+		for(int i=0;i<n;i++)
+			for(int j=0;j<n;j++){
+				out.code[i][j] = in.code[n-1-j][i];
 			}
 		return out;
 	}
 
 	public String toString() {
         String returnStr = "";
-        for (int i = 0; i < 7; i++) {
+        for (int i = 0; i < code.length; i++) {
             String aLine = "";
-            for (int j = 0; j < 7; j++) {
+            for (int j = 0; j < code.length; j++) {
                 aLine = aLine + Integer.toString(code[j][i]);
             }
             returnStr = returnStr + aLine + "\n";
@@ -0,0 +1,129 @@
+package es.ava.aruco;
+
+/**
+ * Table driven decoder for the 5x5 code inside a marker. The code is packed in
+ * a 25 bits int, row by row from the top one, with the first column of each row
+ * in its most significant bit. Each row must be one of the 4 words of the aruco
+ * scheme, two of its bits give 2 bits of the id, so there are 1024 ids.
+ * All the tables are computed once so decoding a candidate doesn't allocate.
+ *
+ */
+public final class CodeDecoder {
+
+	public static final int N_IDS = 1024;
+
+	// the valid words for each row
+	private static final int[] WORDS = {0x10,0x17,0x09,0x0e};
+	// hamming distance from each possible row to its nearest word and that word
+	private static final int[] ROW_DIST = new int[32];
+	private static final int[] ROW_WORD = new int[32];
+	// contribution of each row to the code rotated 90 degrees, as Code.rotate does
+	private static final int[][] ROTATE = new int[5][32];
+	// the code of each id
+	private static final int[] CODES = new int[N_IDS];
+
+	static{
+		for(int v=0;v<32;v++){
+			int minSum = Integer.MAX_VALUE;
+			for(int p=0;p<4;p++){
+				int sum = Integer.bitCount(v ^ WORDS[p]);
+				if(sum < minSum){
+					minSum = sum;
+					ROW_WORD[v] = p;
+				}
+			}
+			ROW_DIST[v] = minSum;
+		}
+		// the cell (r,c) goes to (c,4-r) when rotated
+		for(int r=0;r<5;r++)
+			for(int v=0;v<32;v++){
+				int out = 0;
+				for(int c=0;c<5;c++)
+					if(((v>>(4-c)) & 1) != 0)
+						out |= 1<<(24 - (5*c + 4-r));
+				ROTATE[r][v] = out;
+			}
+		for(int id=0;id<N_IDS;id++){
+			int code = 0;
+			for(int r=0;r<5;r++)
+				code = (code<<5) | WORDS[(id>>2*(4-r)) & 0x0003];
+			CODES[id] = code;
+		}
+	}
+
+	private CodeDecoder(){}
+
+	/**
+	 * Looks for the rotation of the code with the minimum hamming distance to a
+	 * valid code and returns its id.
+	 * @param code the 25 bits of the code inside the border.
+	 * @param maxErrors the maximum number of wrong bits accepted, 0 for an exact match.
+	 * @return -1 if there is no valid code close enough, otherwise id*4 + rotations, see
+	 * 		{@link #id(int)} and {@link #rotations(int)}.
+	 */
+	public static int decode(int code, int maxErrors){
+		int minDist = Integer.MAX_VALUE;
+		int best = 0, bestRotation = 0;
+		int current = code;
+		for(int i=0;i<4;i++){
+			int dist = distance(current);
+			if(dist < minDist){
+				minDist = dist;
+				best = current;
+				bestRotation = i;
+			}
+			current = rotate(current);
+		}
+		if(minDist > maxErrors)
+			return -1; // matching id not found
+		int id = 0;
+		for(int r=0;r<5;r++)
+			id = (id<<2) | ROW_WORD[row(best, r)];
+		return (id<<2) | bestRotation;
+	}
+
+	/**
+	 * @param decoded a value returned by decode.
+	 * @return the id of the marker.
+	 */
+	public static int id(int decoded){
+		return decoded>>2;
+	}
+
+	/**
+	 * @param decoded a value returned by decode.
+	 * @return the number of rotations of 90 degrees needed to read the code.
+	 */
+	public static int rotations(int decoded){
+		return decoded & 3;
+	}
+
+	/**
+	 * returns the 25 bits code of an id.
+	 * @param id must be in the range [0,1023]
+	 * @return the code.
+	 */
+	public static int code(int id){
+		return CODES[id];
+	}
+
+	/**
+	 * returns the code rotated 90 degrees.
+	 */
+	public static int rotate(int code){
+		return ROTATE[0][row(code,0)] | ROTATE[1][row(code,1)] | ROTATE[2][row(code,2)] |
+				ROTATE[3][row(code,3)] | ROTATE[4][row(code,4)];
+	}
+
+	/**
+	 * hamming distance of the code to its nearest valid code, without rotating it.
+	 */
+	public static int distance(int code){
+		return ROW_DIST[row(code,0)] + ROW_DIST[row(code,1)] + ROW_DIST[row(code,2)] +
+				ROW_DIST[row(code,3)] + ROW_DIST[row(code,4)];
+	}
+
+	private static int row(int code, int r){
+		return (code>>(5*(4-r))) & 0x1f;
+	}
+}
@@ -0,0 +1,262 @@
+package es.ava.aruco;
+
+import org.opencv.core.Mat;
+
+/**
+ * What the detectors did in a frame: the time spent in each stage, in nanoseconds,
+ * how many contours and candidates were found, why the candidates were rejected
+ * and the reprojection error of each marker. It is filled by MarkerDetector and
+ * BoardDetector when given with setMetrics, and reused every frame, so it costs
+ * nothing but a few calls to System.nanoTime.
+ * A frame begins in MarkerDetector.detect and ends when endFrame is called or the
+ * next one begins, so the work done with the same frame after detect, such as the
+ * detection of a board, is counted in it. Then it is given to the sink, if any.
+ */
+public class DetectionMetrics {
+	/**
+	 * Stages of the detection.
+	 */
+	public enum Stage {
+		GREY, // color conversion of the frame
+		THRESHOLD, // reduction and threshold of the image
+		CONTOURS, // findContours
+		FILTER, // selection of the quads among the contours and of the candidates near each other
+		DECODE, // reading of the codes and removal of repeated ids
+		REFINE, // refinement of the corners
+		POSE, // extrinsics of the markers
+		BOARD // BoardDetector.detect
+	}
+
+	/**
+	 * Reasons to reject a contour or candidate.
+	 */
+	public enum Rejection {
+		SMALL_CONTOUR, // too few points for the size of the frame
+		NOT_QUAD, // the polygon approximated has not 4 corners
+		NOT_CONVEX,
+		SHORT_SIDE, // two corners too close
+		TOO_CLOSE, // another candidate almost in the same place, the biggest one is kept
+		UNREADABLE, // the quad is degenerate or has not enough contrast
+		BORDER, // the border of the code is not black
+		CODE, // the code is not in the dictionary
+		DUPLICATE, // another marker with the same id, the biggest one is kept
+		BOARD_OUTLIER // a marker of a board that disagrees with its pose, see BoardDetector.setRobustPose
+	}
+
+	private static final Rejection[] REJECTIONS = Rejection.values();
+
+	private final long[] stageNanos;
+	private final int[] rejections;
+	private int contours, candidates, markers;
+	private int[] markerIds;
+	private double[] markerErrors;
+	private double boardError;
+	private long frame;
+	private boolean open;
+	private MetricsSink sink;
+
+	// scratch to calculate the reprojection error of the markers
+	private final double[] rvec, tvec, pose;
+	private final float[] img, obj;
+
+	public DetectionMetrics(){
+		stageNanos = new long[Stage.values().length];
+		rejections = new int[REJECTIONS.length];
+		markerIds = new int[16];
+		markerErrors = new double[16];
+		boardError = -1;
+		frame = 0;
+		open = false;
+		sink = null;
+		rvec = new double[3];
+		tvec = new double[3];
+		pose = new double[12];
+		img = new float[8];
+		obj = new float[12];
+	}
+
+	/**
+	 * Sets who receives the metrics of each frame once finished.
+	 * @param sink the sink, null for none.
+	 */
+	public void setSink(MetricsSink sink){
+		this.sink = sink;
+	}
+
+	public MetricsSink getSink(){
+		return sink;
+	}
+
+	/**
+	 * Starts a new frame, the previous one is finished first if it has not been.
+	 * It is called by MarkerDetector.detect.
+	 */
+	public void beginFrame(){
+		endFrame();
+		for(int i=0;i<stageNanos.length;i++)
+			stageNanos[i] = 0;
+		for(int i=0;i<rejections.length;i++)
+			rejections[i] = 0;
+		contours = candidates = markers = 0;
+		boardError = -1;
+		frame++;
+		open = true;
+	}
+
+	/**
+	 * Finishes the frame and gives it to the sink. Calling it again does nothing
+	 * until the next frame begins.
+	 */
+	public void endFrame(){
+		if(!open)
+			return;
+		open = false;
+		if(sink != null)
+			sink.frameDone(this);
+	}
+
+	/**
+	 * returns the number of frames begun, the current one included.
+	 */
+	public long getFrame(){
+		return frame;
+	}
+
+	public long getStageNanos(Stage stage){
+		return stageNanos[stage.ordinal()];
+	}
+
+	/**
+	 * returns the time of all the stages together.
+	 */
+	public long getTotalNanos(){
+		long total = 0;
+		for(int i=0;i<stageNanos.length;i++)
+			total += stageNanos[i];
+		return total;
+	}
+
+	/**
+	 * returns the number of contours found in the thresholded images.
+	 */
+	public int getContours(){
+		return contours;
+	}
+
+	/**
+	 * returns the number of quads that were candidates to be a marker.
+	 */
+	public int getCandidates(){
+		return candidates;
+	}
+
+	public int getRejections(Rejection reason){
+		return rejections[reason.ordinal()];
+	}
+
+	/**
+	 * returns the number of markers detected.
+	 */
+	public int getMarkers(){
+		return markers;
+	}
+
+	/**
+	 * returns the id of the i-th marker detected.
+	 */
+	public int getMarkerId(int i){
+		return markerIds[i];
+	}
+
+	/**
+	 * returns the root mean square distance in pixels between the corners of the
+	 * i-th marker and their reprojection with its pose, -1 if it has no pose.
+	 */
+	public double getReprojectionError(int i){
+		return markerErrors[i];
+	}
+
+	/**
+	 * returns the reprojection error of the board detected in the frame, see
+	 * Board.getReprojectionError, -1 if none.
+	 */
+	public double getBoardReprojectionError(){
+		return boardError;
+	}
+
+	/**
+	 * Adds the time elapsed since start to the stage given.
+	 * @return the current time, the start of the next stage.
+	 */
+	long lap(Stage stage, long start){
+		long now = System.nanoTime();
+		stageNanos[stage.ordinal()] += now-start;
+		return now;
+	}
+
+	void addContours(int n){
+		contours += n;
+	}
+
+	void setCandidates(int n){
+		candidates = n;
+	}
+
+	void reject(Rejection reason){
+		rejections[reason.ordinal()]++;
+	}
+
+	/**
+	 * Counts a rejection given as a code of MarkerDetector, see rejectionCode.
+	 */
+	void reject(int code){
+		rejections[code-1]++;
+	}
+
+	static int rejectionCode(Rejection reason){
+		return reason.ordinal()+1;
+	}
+
+	void setBoardReprojectionError(double error){
+		boardError = error;
+	}
+
+	/**
+	 * Adds a marker detected, with its reprojection error if the camera is given.
+	 * @param intrinsics the camera, see CameraParameters.getIntrinsics, null if the
+	 * 		markers have no pose.
+	 */
+	void addMarker(Marker marker, double[] intrinsics){
+		if(markers == markerIds.length){
+			int[] ids = new int[2*markers];
+			double[] errors = new double[2*markers];
+			System.arraycopy(markerIds, 0, ids, 0, markers);
+			System.arraycopy(markerErrors, 0, errors, 0, markers);
+			markerIds = ids;
+			markerErrors = errors;
+		}
+		markerIds[markers] = marker.id;
+		markerErrors[markers] = intrinsics == null? -1 : reprojectionError(marker, intrinsics);
+		markers++;
+	}
+
+	private double reprojectionError(Marker marker, double[] intrinsics){
+		Mat r = marker.getRvec(), t = marker.getTvec();
+		r.get(0, 0, rvec);
+		t.get(0, 0, tvec);
+		SquarePoseSolver.toRotationMatrix(rvec, pose);
+		System.arraycopy(tvec, 0, pose, 9, 3);
+		// the pose is aligned to the id, rotated (rotations+1)*90 degrees around z, so the
+		// corners of the square are taken as many positions ahead
+		float h = marker.getSize()/2;
+		marker.getCorners(img, 0);
+		int rot = marker.getRotations();
+		for(int k=0;k<4;k++){
+			int j = (k+rot+1)%4;
+			obj[3*k] = j<2? -h : h;
+			obj[3*k+1] = j==0 || j==3? -h : h;
+			obj[3*k+2] = 0;
+		}
+		return RobustBoardPose.reprojectionError(pose, img, obj, 1, null, intrinsics);
+	}
+}
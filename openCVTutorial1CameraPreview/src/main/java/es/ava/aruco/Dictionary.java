@@ -0,0 +1,125 @@
+package es.ava.aruco;
+
+import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * Set of valid codes of the markers. The code of a marker is a square grid of
+ * bits inside a black border one cell wide, so a dictionary of n bits per side
+ * uses a grid of n+2 cells per side. The bits are packed in a long row by row,
+ * from the top one, with the first column of each row in the most significant bit,
+ * so up to 8 bits per side are supported. A 1 is a white cell.
+ * The minimum distance of a dictionary is the minimum hamming distance between
+ * any two codes in any of their rotations, and between a code and its own
+ * rotations, so up to (minDistance-1)/2 wrong bits can be corrected.
+ */
+public abstract class Dictionary {
+	public static final int MAX_BITS = 8;
+
+	/**
+	 * returns the number of bits per side of the codes, without the border.
+	 */
+	public abstract int getBits();
+
+	/**
+	 * returns the number of ids, which go from 0 to size()-1.
+	 */
+	public abstract int size();
+
+	/**
+	 * returns the code of an id.
+	 */
+	public abstract long getCode(int id);
+
+	/**
+	 * Looks for the valid code nearest to the one given in any of its rotations.
+	 * @param code the bits read from the marker.
+	 * @param maxErrors the maximum number of wrong bits accepted, 0 for an exact match.
+	 * @return -1 if there is no valid code close enough, otherwise id*4 + rotations, see
+	 * 		{@link #id(int)} and {@link #rotations(int)}.
+	 */
+	public abstract int decode(long code, int maxErrors);
+
+	/**
+	 * returns the minimum hamming distance between the codes, see above.
+	 */
+	public abstract int getMinDistance();
+
+	/**
+	 * returns the number of wrong bits that can be corrected without the risk of
+	 * reading another id.
+	 */
+	public int getMaxCorrectableErrors(){
+		return Math.max(0, (getMinDistance()-1)/2);
+	}
+
+	/**
+	 * returns the number of cells per side of the markers, border included.
+	 */
+	public int getGridSize(){
+		return getBits()+2;
+	}
+
+	/**
+	 * @param decoded a value returned by decode.
+	 * @return the id of the marker.
+	 */
+	public static int id(int decoded){
+		return decoded>>2;
+	}
+
+	/**
+	 * @param decoded a value returned by decode.
+	 * @return the number of rotations of 90 degrees needed to read the code.
+	 */
+	public static int rotations(int decoded){
+		return decoded & 3;
+	}
+
+	/**
+	 * returns the code rotated 90 degrees, the bit in (r,c) goes to (c,bits-1-r)
+	 * as Code.rotate does.
+	 */
+	public static long rotate(long code, int bits){
+		long out = 0;
+		for(int r=0;r<bits;r++)
+			for(int c=0;c<bits;c++)
+				if(bit(code, bits, r, c))
+					out |= 1L<<(bits*bits-1 - (bits*c + bits-1-r));
+		return out;
+	}
+
+	/**
+	 * returns the bit of the row and column given of a code.
+	 */
+	public static boolean bit(long code, int bits, int row, int col){
+		return ((code>>>(bits*bits-1 - (bits*row + col))) & 1) != 0;
+	}
+
+	/**
+	 * Creates the image of a marker, black and white, with the border included.
+	 * @param id the id of the marker.
+	 * @param size the side of the image in pixels, better if multiple of getGridSize.
+	 * @return a CV_8UC1 Mat.
+	 * @throws CvException if the id is not in the dictionary.
+	 */
+	public Mat createMarkerImage(int id, int size) throws CvException{
+		if(id < 0 || id >= size())
+			throw new CvException("id out of range");
+		int bits = getBits();
+		long code = getCode(id);
+		Mat marker = new Mat(size, size, CvType.CV_8UC1, new Scalar(0));
+		int swidth = size/getGridSize();
+		Scalar white = new Scalar(255);
+		for(int y=0;y<bits;y++)
+			for(int x=0;x<bits;x++)
+				if(bit(code, bits, y, x)){
+					Mat roi = marker.submat((y+1)*swidth, (y+2)*swidth, (x+1)*swidth, (x+2)*swidth);
+					roi.setTo(white);
+					roi.release();
+				}
+		return marker;
+	}
+}
@@ -0,0 +1,17 @@
+package es.ava.aruco;
+
+import org.opencv.core.Mat;
+
+/**
+ * Reduced images of a grey frame already computed by someone else, such as the
+ * camera view, so MarkerDetector does not compute them again, see
+ * MarkerDetector.setMinMarkerSize.
+ */
+public interface GreyPyramid {
+	/**
+	 * returns a level of the pyramid of the frame, each one half the size of the
+	 * previous one as given by Imgproc.pyrDown.
+	 * @param level 1 or more, 0 would be the grey frame itself.
+	 */
+	Mat level(int level);
+}
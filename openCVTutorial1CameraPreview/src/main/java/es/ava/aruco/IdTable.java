@@ -0,0 +1,55 @@
+package es.ava.aruco;
+
+/**
+ * Hash from marker ids to small non negative ints, such as the cell of a board or
+ * the index of a board, with open addressing so looking an id up does not box it.
+ * Ids must be non negative.
+ */
+class IdTable {
+	private final int[] keys, values;
+	private final int mask;
+
+	/**
+	 * @param capacity the maximum number of ids that will be put.
+	 */
+	IdTable(int capacity){
+		int tableSize = 16;
+		while(tableSize < 2*capacity)
+			tableSize <<= 1;
+		keys = new int[tableSize];
+		values = new int[tableSize];
+		mask = tableSize-1;
+		for(int i=0;i<tableSize;i++)
+			keys[i] = -1;
+	}
+
+	/**
+	 * returns the value of the id given.
+	 * @return -1 if the id has not been put.
+	 */
+	int get(int id){
+		if(id < 0)
+			return -1;
+		for(int slot=hash(id);;slot=(slot+1)&mask){
+			if(keys[slot] == id)
+				return values[slot];
+			if(keys[slot] == -1)
+				return -1;
+		}
+	}
+
+	/**
+	 * Sets the value of an id that has not been put yet, the table must not be full.
+	 */
+	void put(int id, int value){
+		int slot = hash(id);
+		while(keys[slot] != -1)
+			slot = (slot+1)&mask;
+		keys[slot] = id;
+		values[slot] = value;
+	}
+
+	private int hash(int id){
+		return (id*0x9E3779B1 >>> 16) & mask;
+	}
+}
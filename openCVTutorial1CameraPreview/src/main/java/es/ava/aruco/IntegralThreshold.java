@@ -0,0 +1,117 @@
+package es.ava.aruco;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Adaptive threshold based on the integral image. The integral image is calculated
+ * once per frame and then the mean of the neighbourhood of every pixel can be
+ * obtained for any block size with 3 additions, so thresholding the same frame
+ * with several block sizes is cheap.
+ * The result is equivalent to adaptiveThreshold with ADAPTIVE_THRESH_MEAN_C and
+ * THRESH_BINARY_INV up to the rounding of the mean: 255 where the pixel is not
+ * brighter than the mean of its neighbourhood minus a constant, 0 elsewhere. The
+ * exact mean is used here, while adaptiveThreshold rounds it to a byte and the
+ * constant up to an integer, so a few pixels near the threshold may differ. Everything is done with native calls
+ * over the whole image, no pixel is read from java.
+ */
+public class IntegralThreshold {
+	private static final int CACHED_BLOCKS = 8;
+
+	private Mat src; // the image whose integral has been calculated
+	private Mat padded, sum, box, scaled;
+	private int pad;
+	// headers of the 4 corners of the blocks in the integral image for the last block
+	// sizes used, kept while the integral image is the same buffer with the same layout
+	private final Mat[] corners;
+	private final int[] cornerRadius;
+	private int nextCorners;
+	private long sumData;
+	private int sumPad, sumRows, sumCols;
+
+	public IntegralThreshold(){
+		padded = new Mat();
+		sum = new Mat();
+		box = new Mat();
+		scaled = new Mat();
+		pad = 0;
+		corners = new Mat[4*CACHED_BLOCKS];
+		cornerRadius = new int[CACHED_BLOCKS];
+		nextCorners = 0;
+		sumData = 0;
+	}
+
+	/**
+	 * Calculates the integral image of the frame given. It must be called before
+	 * threshold each time the image changes.
+	 * @param grey the image to threshold, CV_8UC1.
+	 * @param maxBlockSize the largest block size that will be used with this image.
+	 */
+	public void setImage(Mat grey, int maxBlockSize){
+		src = grey;
+		// the border is replicated as adaptiveThreshold does, so blocks near the edges are full
+		pad = maxBlockSize/2;
+		Imgproc.copyMakeBorder(grey, padded, pad, pad, pad, pad, Imgproc.BORDER_REPLICATE);
+		Imgproc.integral(padded, sum, CvType.CV_32S);
+		if(sum.dataAddr() != sumData || pad != sumPad || grey.rows() != sumRows || grey.cols() != sumCols){
+			releaseCorners();
+			sumData = sum.dataAddr();
+			sumPad = pad;
+			sumRows = grey.rows();
+			sumCols = grey.cols();
+		}
+	}
+
+	/**
+	 * Thresholds the image set with setImage.
+	 * @param blockSize size of the pixel neighborhood used to calculate the mean, it must be
+	 * 		odd and not larger than the maxBlockSize given to setImage.
+	 * @param c the constant subtracted from the mean.
+	 * @param dst output CV_8UC1 image, 255 for dark pixels.
+	 */
+	public void threshold(int blockSize, double c, Mat dst){
+		int r = Math.min(blockSize/2, pad);
+		int rows = src.rows(), cols = src.cols();
+		int area = (2*r+1)*(2*r+1);
+		// sum of the block around each pixel from the 4 corners of the block in the integral
+		int k = 4*cornersOf(r, rows, cols);
+		Core.subtract(corners[k], corners[k+1], box);
+		Core.subtract(box, corners[k+2], box);
+		Core.add(box, corners[k+3], box);
+		// src <= mean - c  <=>  src*area + c*area <= sum, all of it in integers
+		src.convertTo(scaled, CvType.CV_32S, area, c*area);
+		Core.compare(scaled, box, dst, Core.CMP_LE);
+	}
+
+	// returns the index of the headers of the corners of the blocks of the radius given,
+	// they are created only the first time the radius is used with this integral image
+	private int cornersOf(int r, int rows, int cols){
+		for(int i=0;i<CACHED_BLOCKS;i++)
+			if(corners[4*i] != null && cornerRadius[i] == r)
+				return i;
+		// the oldest ones are replaced
+		int i = nextCorners;
+		nextCorners = (nextCorners+1) % CACHED_BLOCKS;
+		for(int k=4*i;k<4*i+4;k++)
+			if(corners[k] != null)
+				corners[k].release();
+		int lo = pad-r, hi = pad+r+1;
+		corners[4*i] = sum.submat(hi, hi+rows, hi, hi+cols);
+		corners[4*i+1] = sum.submat(lo, lo+rows, hi, hi+cols);
+		corners[4*i+2] = sum.submat(hi, hi+rows, lo, lo+cols);
+		corners[4*i+3] = sum.submat(lo, lo+rows, lo, lo+cols);
+		cornerRadius[i] = r;
+		return i;
+	}
+
+	// the headers keep the buffer of the integral image they were taken from
+	private void releaseCorners(){
+		for(int k=0;k<corners.length;k++){
+			if(corners[k] != null)
+				corners[k].release();
+			corners[k] = null;
+		}
+	}
+}
@@ -35,30 +35,88 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	protected int id;
 	protected float ssize;
 	private int rotations;
+	protected int age; // number of consecutive frames the marker has been seen, see OpticalFlowTracker
+	protected float confidence; // how reliable the corners are, 1 when just detected
 	
 	private Code code; // a matrix of integer representing the code (see the class to further explanation)
 	
 	private Mat mat; // the cvMat of the CANONICAL marker (not the one taken from the capture)
+	private Mat thres; // scratch for the thresholded canonical marker, kept to be reused
+	private byte[] pixels; // the pixels of thres read back in a single call
 	private Mat Rvec;
 	private Mat Tvec;
 	
 	private Vector<Point> points;
+	private float[] corners; // buffer to copy the points to the mat
+	private double[] rvecBuff, tvecBuff;
+	private Mat rotationMat; // scratch to align the pose to the id, created when first needed
+	private double[] rotationBuff;
 	
 	public Marker(float size, Vector<Point> p){
 		id = -1;
 		ssize = size;
+		age = 0;
+		confidence = 1;
 		// TODO revise how the mats are initialized, better to create them with the proper type
 		// code more legible
 		code = new Code();
 		Rvec = new Mat(3,1,CvType.CV_64FC1);
 		Tvec = new Mat(3,1,CvType.CV_64FC1);
 		mat = new Mat();
+		corners = new float[8];
+		rvecBuff = new double[3];
+		tvecBuff = new double[3];
 		points = new Vector<Point>();
 		for(int i=0;i<p.size();i++)
 			points.add(p.get(i));
 		this.fromList(points);
 	}
 	
+	/**
+	 * Reuses this marker for a new candidate instead of allocating a new one.
+	 * The corners are overwritten in place so no objects are created.
+	 * @param size the size of the marker in meters
+	 * @param p the 4 corners as [x1 y1 x2 y2 x3 y3 x4 y4]
+	 */
+	protected void reset(float size, float[] p){
+		id = -1;
+		ssize = size;
+		rotations = 0;
+		age = 0;
+		confidence = 1;
+		setCorners(p, 0);
+	}
+	
+	/**
+	 * Copies the corners into the array given as [x1 y1 x2 y2 x3 y3 x4 y4].
+	 * @param dst the array.
+	 * @param offset position of x1 in the array.
+	 */
+	protected void getCorners(float[] dst, int offset){
+		for(int i=0;i<4;i++){
+			Point point = points.get(i);
+			dst[offset+2*i] = (float)point.x;
+			dst[offset+2*i+1] = (float)point.y;
+		}
+	}
+	
+	/**
+	 * Moves the corners to the ones given, in the same order. The id is kept.
+	 * @param src the corners as [x1 y1 x2 y2 x3 y3 x4 y4].
+	 * @param offset position of x1 in the array.
+	 */
+	protected void setCorners(float[] src, int offset){
+		for(int i=0;i<4;i++){
+			Point point = points.get(i);
+			point.x = src[offset+2*i];
+			point.y = src[offset+2*i+1];
+		}
+		if(corners == null)
+			corners = new float[8];
+		System.arraycopy(src, offset, corners, 0, 8);
+		put(0, 0, corners);
+	}
+	
 	public void draw(Mat in, Scalar color, int lineWidth, boolean writeId){
 	    if (total()!=4)
 	    	return;
@@ -105,25 +163,11 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		return id;
 	}
 	
+	/**
+	 * Creates the image of a marker of the aruco dictionary, see Dictionary.createMarkerImage.
+	 */
 	public static Mat createMarkerImage(int id,int size) throws CvException	{
-	    if (id>=1024)
-	    	throw new CvException("id out of range");
-	    Mat marker = new Mat(size,size, CvType.CV_8UC1, new Scalar(0));
-	    //for each line, create
-	    int swidth=size/7;
-	    int ids[]={0x10,0x17,0x09,0x0e};
-	    for (int y=0;y<5;y++) {
-	        int index=(id>>2*(4-y)) & 0x0003;
-	        int val=ids[index];
-	        for (int x=0;x<5;x++) {
-	            Mat roi=marker.submat((x+1)*swidth, (x+2)*swidth,(y+1)*swidth,(y+2)*swidth);// TODO check
-	            if ( (( val>>(4-x) ) & 0x0001) != 0 )
-	            	roi.setTo(new Scalar(255));
-	            else
-	            	roi.setTo(new Scalar(0));
-	        }
-	    }
-	    return marker;
+		return ArucoDictionary.getInstance().createMarkerImage(id, size);
 	}
 		
 	public void draw3dCube(Mat frame, CameraParameters cp, Scalar color){
@@ -155,6 +199,14 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	protected void setMat(Mat in){
 		in.copyTo(mat);
 	}
+
+	/**
+	 * Sets the cells per side of the code to read, border included.
+	 */
+	protected void setCodeSize(int size){
+		if(code.getSize() != size)
+			code = new Code(size);
+	}
 	
 	/**
 	 * construct the matrix of integers from the mat stored.
@@ -163,23 +215,33 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		int rows = mat.rows();
 		int cols = mat.cols();
 		assert(rows == cols);
-		Mat grey = new Mat();
+		if(thres == null)
+			thres = new Mat();
+		Mat grey = mat;
 		// change the color space if necessary
-		if(mat.type() == CvType.CV_8UC1)
-			grey = mat;
-		else
-			Imgproc.cvtColor(mat, grey, Imgproc.COLOR_RGBA2GRAY);
+		if(mat.type() != CvType.CV_8UC1){
+			Imgproc.cvtColor(mat, thres, Imgproc.COLOR_RGBA2GRAY);
+			grey = thres;
+		}
 		// apply a threshold
-		Imgproc.threshold(grey, grey, 125, 255, Imgproc.THRESH_BINARY|Imgproc.THRESH_OTSU);
+		Imgproc.threshold(grey, thres, 125, 255, Imgproc.THRESH_BINARY|Imgproc.THRESH_OTSU);
+		// read the whole canonical marker once instead of a submat per square
+		if(pixels == null || pixels.length != rows*cols)
+			pixels = new byte[rows*cols];
+		thres.get(0, 0, pixels);
 		// the swidth is the width of each row
-		int swidth = rows/7;
+		int n = code.getSize();
+		int swidth = rows/n;
 		// we go through all the rows
-		for(int y=0;y<7;y++){
-			for(int x=0;x<7;x++){
+		for(int y=0;y<n;y++){
+			for(int x=0;x<n;x++){
 				int Xstart = x*swidth;
 				int Ystart = y*swidth;
-				Mat square = grey.submat(Xstart, Xstart+swidth, Ystart, Ystart+swidth);
-				int nZ = Core.countNonZero(square);
+				int nZ = 0;
+				for(int r=Xstart;r<Xstart+swidth;r++)
+					for(int c=Ystart;c<Ystart+swidth;c++)
+						if(pixels[r*cols+c] != 0)
+							nZ++;
 				if(nZ > (swidth*swidth)/2)
 					code.set(x, y, 1);
 				else
@@ -195,28 +257,33 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @return the id of the marker
 	 */
 	protected int calculateMarkerId(){
+		return calculateMarkerId(0);
+	}
+	
+	/**
+	 * Same as above but accepting codes with up to maxErrors wrong bits, which are
+	 * read as the nearest valid code.
+	 * @param maxErrors maximum hamming distance to a valid code.
+	 * @return the id of the marker, -1 if not found
+	 */
+	protected int calculateMarkerId(int maxErrors){
+		return calculateMarkerId(ArucoDictionary.getInstance(), maxErrors);
+	}
+
+	/**
+	 * Same as above but with the codes of the dictionary given, the code must have
+	 * been extracted with its grid size.
+	 * @param dictionary the valid codes.
+	 * @param maxErrors maximum hamming distance to a valid code.
+	 * @return the id of the marker, -1 if not found
+	 */
+	protected int calculateMarkerId(Dictionary dictionary, int maxErrors){
 		// check all the rotations of code
-		Code[] rotations = new Code[4];
-		rotations[0] = code;
-		int[] dists = new int[4];
-		dists[0] = hammDist(rotations[0]);
-		int[] minDist = {dists[0],0};
-		for(int i=1;i<4;i++){
-			// rotate
-			rotations[i] = Code.rotate(rotations[i-1]);
-			dists[i] = hammDist(rotations[i]);
-			if(dists[i] < minDist[0]){
-				minDist[0] = dists[i];
-				minDist[1] = i;
-			}
-		}
-		this.rotations = minDist[1];
-		if(minDist[0] != 0){
+		int decoded = dictionary.decode(code.toLong(), maxErrors);
+		if(decoded == -1)
 			return -1; // matching id not found
-		}
-		else{
-			this.id = mat2id(rotations[minDist[1]]);
-		}
+		this.rotations = Dictionary.rotations(decoded);
+		this.id = Dictionary.id(decoded);
 		return id;
 	}
 	
@@ -225,12 +292,13 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @return true if the border is black, false otherwise
 	 */
 	protected boolean checkBorder(){
-		for(int i=0;i<7;i++){
+		int n = code.getSize();
+		for(int i=0;i<n;i++){
 			// normally we'll only check first and last square
-			int inc = 6;
-			if(i==0 || i==6)// in first and last row the whole row must be checked
+			int inc = n-1;
+			if(i==0 || i==n-1)// in first and last row the whole row must be checked
 				inc = 1;
-			for(int j=0;j<7;j+=inc)
+			for(int j=0;j<n;j+=inc)
 				if(code.get(i, j)==1)
 					return false;
 		}
@@ -257,54 +325,94 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 
 		MatOfPoint3f objPointsMat = new MatOfPoint3f();
 		objPointsMat.fromList(objPoints);
-		Calib3d.solvePnP(objPointsMat, this, camMatrix, distCoeffs, Rvec, Tvec);
+		calculateExtrinsics(camMatrix, distCoeffs, objPointsMat);
+	}
+	
+	/**
+	 * Same as above but with the 3D corners of the marker already built, so
+	 * the caller can keep them between frames.
+	 * @param camMatrix
+	 * @param distCoeffs
+	 * @param objPoints the 4 corners of the marker in its own reference system
+	 */
+	protected void calculateExtrinsics(Mat camMatrix, MatOfDouble distCoeffs, MatOfPoint3f objPoints){
+		Calib3d.solvePnP(objPoints, this, camMatrix, distCoeffs, Rvec, Tvec);
 
 		//Added to library
-        Utils.alignToId(Rvec, this.getRotations());
+		alignToId();
 	}
 	
-	protected void setPoints(List<Point> p){
-		this.fromList(p);
+	/**
+	 * Same as above but with the closed form solver, without native calls other than
+	 * the ones to store the result in Rvec and Tvec.
+	 * @param solver the solver to use, see SquarePoseSolver.
+	 * @param intrinsics the camera, see CameraParameters.getIntrinsics.
+	 * @param pose receives the pose before aligning it to the id, see SquarePoseSolver.solve.
+	 * 		If useGuess is true it must hold the pose to start from.
+	 * @param useGuess true to refine the pose given.
+	 * @return false if the corners are degenerate, the extrinsics are not modified then.
+	 */
+	protected boolean calculateExtrinsics(SquarePoseSolver solver, double[] intrinsics, double[] pose, boolean useGuess){
+		getCorners(corners, 0);
+		if(!solver.solve(corners, intrinsics, ssize, pose, useGuess))
+			return false;
+		setExtrinsics(solver, pose);
+		return true;
 	}
-
-	private int hammDist(Code code){
-		int ids[][] = {
-				{1,0,0,0,0},
-				{1,0,1,1,1},
-				{0,1,0,0,1},
-				{0,1,1,1,0}
-		};
-		int dist = 0;
-		for(int y=0;y<5;y++){
-			int minSum = Integer.MAX_VALUE;
-			// hamming distance to each possible word
-			for(int p=0;p<4;p++){
-				int sum=0;
-				for(int x=0;x<5;x++)
-					sum+= code.get(y+1,x+1) == ids[p][x]? 0:1;
-				minSum = sum<minSum? sum:minSum;
-			}
-			dist+=minSum;
-		}
-		return dist;
+	
+	/**
+	 * Sets the extrinsics from a pose given by SquarePoseSolver, aligning it to the id.
+	 */
+	protected void setExtrinsics(SquarePoseSolver solver, double[] pose){
+		solver.align(pose, rotations, rvecBuff, tvecBuff);
+		Rvec.put(0, 0, rvecBuff);
+		Tvec.put(0, 0, tvecBuff);
 	}
-
-	private int mat2id(Code code){
-		int val=0;
-		for(int y=1;y<6;y++){
-			val<<=1;
-			if(code.get(y,2) == 1)
-				val |= 1;
-			val<<=1;
-			if(code.get(y,4) == 1)
-				val |= 1;
+	
+	/**
+	 * Sets the extrinsics from a pose calculated elsewhere with the corners of this
+	 * marker, see PoseTracker. The pose is aligned to the id as calculateExtrinsics does.
+	 * @param rvec rotation given by solvePnP, it is not modified
+	 * @param tvec translation given by solvePnP
+	 */
+	protected void setExtrinsics(Mat rvec, Mat tvec){
+		rvec.copyTo(Rvec);
+		tvec.copyTo(Tvec);
+		alignToId();
+	}
+	
+	// rotates Rvec according to the rotation of the code, see Utils.alignToId
+	private void alignToId(){
+		if(rotationMat == null){
+			rotationMat = new Mat(3,3,CvType.CV_64FC1);
+			rotationBuff = new double[9];
 		}
-		return val;
+		Utils.alignToId(Rvec, this.getRotations(), rotationMat, rotationBuff);
 	}
 	
+	protected void setPoints(List<Point> p){
+		this.fromList(p);
+	}
+
 	public int getRotations(){
 		return this.rotations;
 	}
+	
+	/**
+	 * number of consecutive frames this marker has been seen when it is tracked
+	 * with OpticalFlowTracker, 0 if it has only been detected by MarkerDetector.
+	 */
+	public int getAge(){
+		return age;
+	}
+	
+	/**
+	 * how reliable the corners are, from 0 to 1. It is 1 for markers detected
+	 * in the current frame and decreases while they are tracked.
+	 */
+	public float getConfidence(){
+		return confidence;
+	}
 
 	@Override
 	public int compareTo(Marker other) {
@@ -8,11 +8,17 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
-import org.opencv.core.Scalar;
+import org.opencv.core.Point3;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
+import es.ava.aruco.DetectionMetrics.Rejection;
+import es.ava.aruco.DetectionMetrics.Stage;
+
 /**
  * Class to detect markers. It will be done by a threshold technique and
  * analysing the contours detected in the frame given looking for valid
@@ -23,29 +29,169 @@ import org.opencv.imgproc.Imgproc;
 // TODO eliminate innecessary native calls, for example store the frame info 
 // such as type in member fields and call it only once
 public class MarkerDetector {
-	private enum thresSuppMethod {FIXED_THRES,ADPT_THRES,CANNY};
+	public enum thresSuppMethod {FIXED_THRES,ADPT_THRES,CANNY,INTEGRAL_THRES};
 	
 	private double thresParam1, thresParam2;
 	private thresSuppMethod thresMethod;
+	private IntegralThreshold integralThres;
+	private int[] blockSizes; // block sizes of INTEGRAL_THRES, null to use only thresParam1
+	private int[] singleBlockSize;
+	private Mat thresSource; // the image to threshold, see prepareThreshold
+	private int[] thresSizes; // the block sizes it is thresholded with by INTEGRAL_THRES
+	private int maxCodeErrors;
+	private int minMarkerSizePix; // enables the search in a reduced image if > 0
 	private Mat grey, thres, thres2, hierarchy2;
+	private Mat frameGrey; // the grey frame being processed, the input itself or grey
 	private Vector<MatOfPoint> contours2;
+	
+	// per-frame scratch, kept between calls so detect() does not allocate them every frame
+	private Vector<Marker> candidateMarkers, newMarkers;
+	private MatOfPoint2f contour, approxCurve;
+	private MatOfPoint approxInt;
+	private float[] points; // [x1 y1 x2 y2 x3 y3 x4 y4]
+	private float[] candidateCorners; // the points of every candidate one after another
+	private int[] toRemove;
+	// grid of the centroids of the candidates, a linked list of candidates per bucket
+	private int[] cellHead, cellNext, cellX, cellY;
+	private VerifyScratch scratch;
+	private MatOfPoint3f objPoints;
+	private float objPointsSize;
+	
+	// levels of the pyramid used to search in a reduced image
+	private Vector<Mat> pyramid;
+	private GreyPyramid framePyramid; // the pyramid of the frame given to detect, if any
+	private Size pyramidWin;
+	private TermCriteria pyramidCriteria;
+	
+	// sub-pixel refinement of the corners of the detected markers
+	private boolean refineCorners;
+	private Size refineWin, refineZeroZone;
+	private TermCriteria refineCriteria;
+	private MatOfPoint2f refineMat;
+	private float[] refineBuffer;
+	
+	// regions of interest where the candidates are looked for instead of the whole frame
+	private List<Rect> userRegions;
+	private boolean predictRegions;
+	private double roiMargin;
+	private int fullSweepInterval, framesSinceSweep;
+	private int[] roiBoxes; // [x0 y0 x1 y1] of each region
+	// headers of the regions searched, reused while the frame buffer and the region are the same
+	private Mat[] roiHeaders;
+	private long[] roiKeys; // [dataAddr cols rows x0 y0 x1 y1] of the frame and region of each header
+	private int nextRoiHeader;
+	private int[] prevBoxes; // boxes around the markers detected in the previous frame
+	private int nPrevBoxes;
+	
+	// markers recycled from frame to frame when pooling is enabled
+	private boolean pooling;
+	private Vector<Marker> markerPool;
+	private int poolUsed;
+	private long poolAllocations;
+	
+	// the codes are sampled from a copy of the grey frame instead of warping the candidates
+	private boolean tileSampling;
+	private byte[] framePixels;
+	private int frameCols, frameRows;
+	
+	// poses of the markers of the previous frame, null to calculate them from scratch
+	private PoseTracker poseTracker;
+	// the poses are calculated with SquarePoseSolver instead of solvePnP
+	private boolean squarePose;
+	
+	// the valid codes and the size the candidates are warped to, which depends on their grid
+	private Dictionary dictionary;
+	private Size canonicalSize;
+	
+	// timings and counts of each frame, null if not wanted
+	private DetectionMetrics metrics;
+	
+	// workers to verify the candidates in parallel, null to do it in the calling thread
+	private ParallelVerifier verifier;
 		
 	private final static double MIN_DISTANCE = 10;
+	// the reasons to remove a candidate, stored in toRemove
+	private final static int REJECT_TOO_CLOSE = DetectionMetrics.rejectionCode(Rejection.TOO_CLOSE);
+	private final static int REJECT_UNREADABLE = DetectionMetrics.rejectionCode(Rejection.UNREADABLE);
+	private final static int REJECT_BORDER = DetectionMetrics.rejectionCode(Rejection.BORDER);
+	private final static int REJECT_CODE = DetectionMetrics.rejectionCode(Rejection.CODE);
+	private final static int REJECT_DUPLICATE = DetectionMetrics.rejectionCode(Rejection.DUPLICATE);
+	private final static Size CANONICAL_SIZE = new Size(50,50);
+	// the markers must keep at least this size in pixels in the reduced image they are searched in
+	private final static int MIN_REDUCED_MARKER_SIZE = 16;
+	// region headers kept, enough for a few regions in each of the buffers of a camera
+	private final static int ROI_HEADERS = 16;
 	
 	public MarkerDetector(){
 		thresParam1 = thresParam2 = 7;
 		thresMethod = thresSuppMethod.ADPT_THRES;
+		integralThres = new IntegralThreshold();
+		blockSizes = null;
+		singleBlockSize = new int[1];
+		thresSource = null;
+		thresSizes = null;
+		maxCodeErrors = 0;
+		minMarkerSizePix = 0;
 		// TODO
 		grey = new Mat();
 		thres = new Mat();
 		thres2 = new Mat();
 		hierarchy2 = new Mat();
 		contours2 = new Vector<MatOfPoint>();
+		candidateMarkers = new Vector<Marker>();
+		newMarkers = new Vector<Marker>();
+		contour = new MatOfPoint2f();
+		approxCurve = new MatOfPoint2f();
+		approxInt = new MatOfPoint();
+		points = new float[8];
+		candidateCorners = new float[8*64];
+		toRemove = new int[64];
+		cellHead = new int[128];
+		cellNext = new int[64];
+		cellX = new int[64];
+		cellY = new int[64];
+		scratch = new VerifyScratch();
+		pyramid = new Vector<Mat>();
+		framePyramid = null;
+		pyramidWin = new Size();
+		pyramidCriteria = new TermCriteria(TermCriteria.MAX_ITER | TermCriteria.EPS, 10, 0.05);
+		refineCorners = false;
+		refineWin = new Size(5,5);
+		refineZeroZone = new Size(-1,-1);
+		refineCriteria = new TermCriteria(TermCriteria.MAX_ITER | TermCriteria.EPS, 30, 0.1);
+		refineMat = new MatOfPoint2f();
+		refineBuffer = new float[8*16];
+		verifier = null;
+		objPointsSize = -1;
+		userRegions = null;
+		predictRegions = false;
+		roiMargin = 0.5;
+		fullSweepInterval = 10;
+		framesSinceSweep = 0;
+		roiBoxes = new int[4*16];
+		prevBoxes = new int[4*16];
+		roiHeaders = new Mat[ROI_HEADERS];
+		roiKeys = new long[7*ROI_HEADERS];
+		nextRoiHeader = 0;
+		nPrevBoxes = 0;
+		pooling = false;
+		markerPool = new Vector<Marker>();
+		poolUsed = 0;
+		poolAllocations = 0;
+		tileSampling = false;
+		framePixels = new byte[0];
+		poseTracker = null;
+		squarePose = false;
+		dictionary = ArucoDictionary.getInstance();
+		canonicalSize = CANONICAL_SIZE;
+		metrics = null;
 	}
     
 	/**
 	 * Method to find markers in a Mat given.
-	 * @param in input color Mat to find the markers in.
+	 * @param in input Mat to find the markers in. It can be a RGBA frame or directly
+	 * 		a grey one (CV_8UC1), such as the Y plane of the camera preview given by
+	 * 		CvCameraViewFrame.gray(), which saves all the color conversions.
 	 * @param detectedMarkers output vector with the markers that have been detected.
 	 * @param markerSizeMeters --
 	 */
@@ -54,43 +200,309 @@ public class MarkerDetector {
     // @param distCoeff --
 
 	public void detect(Mat in, Vector<Marker> detectedMarkers, CameraParameters cp, float markerSizeMeters){
-		Vector<Marker> candidateMarkers = new Vector<Marker>();
-		// the detection in the incoming frame will be done in a different vector
-		// because this will allow the ontouchlistener in View
-		// to have a valid detectedMarkers vector longer
-		Vector<Marker> newMarkers = new Vector<Marker>();
+		detect(in, null, detectedMarkers, cp, markerSizeMeters);
+	}
+	
+	/**
+	 * Same as above taking the reduced images of the frame from the pyramid given
+	 * instead of computing them, when the search is done in a reduced image, see
+	 * setMinMarkerSize. The regions of interest are still reduced by the detector.
+	 * @param pyramid the pyramid of the grey frame, null to compute it.
+	 */
+	public void detect(Mat in, GreyPyramid pyramid, Vector<Marker> detectedMarkers, CameraParameters cp, float markerSizeMeters){
+		framePyramid = pyramid;
+		clearCandidates();
+		if(metrics != null)
+			metrics.beginFrame();
+		long t = now();
 		
 		// do the threshold of image and detect contours
-		Imgproc.cvtColor(in, grey, Imgproc.COLOR_RGBA2GRAY);
-		thresHold(thresMethod, grey, thres);
+		// everything is done in grey, a color frame is converted only once
+		toGrey(in);
+		lap(Stage.GREY, t);
+		// look for the candidates only in the regions of interest, if any
+		int nRegions = regionsToSearch(frameGrey.cols(), frameGrey.rows());
+		if(nRegions == 0)
+			findCandidates(frameGrey, 0, 0, frameGrey.cols(), markerSizeMeters);
+		else
+			for(int r=0;r<nRegions;r++){
+				Mat region = regionHeader(frameGrey, roiBoxes[4*r], roiBoxes[4*r+1], roiBoxes[4*r+2], roiBoxes[4*r+3]);
+				findCandidates(region, roiBoxes[4*r], roiBoxes[4*r+1], frameGrey.cols(), markerSizeMeters);
+			}
+		int nCandidates = candidateMarkers.size();
+		t = now();
 
+		// remove the elements whose corners are to close to each other // TODO necessary?
+		// of each pair too close the marker with the smaller perimeter is removed
+		removeNearCandidates(nCandidates);
+		t = lap(Stage.FILTER, t);
+		identifyCandidates(nCandidates);
+		t = lap(Stage.DECODE, t);
+		
+		refineMarkers();
+		t = lap(Stage.REFINE, t);
+		
+		// detect the position of markers if desired
+		calculateExtrinsics(newMarkers, cp, markerSizeMeters);
+		lap(Stage.POSE, t);
+		if(metrics != null){
+			double[] intrinsics = cp.isValid()? cp.getIntrinsics() : null;
+			for(int i=0;i<newMarkers.size();i++)
+				metrics.addMarker(newMarkers.get(i), intrinsics);
+		}
+		detectedMarkers.setSize(newMarkers.size());
+		Collections.copy(detectedMarkers, newMarkers);
+		framePyramid = null;
+	}
+	
+	/*
+	 * The stages of detect, each one timed as the stage of DetectionMetrics given. They
+	 * are package-private for StageBenchmark, which times them alone. Each one works on
+	 * what the previous ones left.
+	 */
+	
+	// forgets the candidates of the previous frame
+	void clearCandidates(){
+		candidateMarkers.clear();
+		poolUsed = 0;
+	}
+	
+	// GREY: sets the grey frame, converting the frame given if it is in color
+	void toGrey(Mat in){
+		if(in.channels() == 1)
+			frameGrey = in;
+		else{
+			Imgproc.cvtColor(in, grey, Imgproc.COLOR_RGBA2GRAY);
+			frameGrey = grey;
+		}
+	}
+	
+	// THRESHOLD: prepares the threshold of the image given, the integral image of
+	// INTEGRAL_THRES is calculated here. returns the number of thresholds to do, one
+	// per block size
+	int prepareThreshold(Mat search){
+		thresSource = search;
+		if(thresMethod != thresSuppMethod.INTEGRAL_THRES)
+			return 1;
+		// the integral image is calculated once and thresholded with each block size
+		thresSizes = blockSizes;
+		if(thresSizes == null){
+			singleBlockSize[0] = (int)thresParam1;
+			thresSizes = singleBlockSize;
+		}
+		int maxSize = 0;
+		for(int i=0;i<thresSizes.length;i++)
+			maxSize = Math.max(maxSize, thresSizes[i]);
+		integralThres.setImage(search, maxSize);
+		return thresSizes.length;
+	}
+	
+	// THRESHOLD: thresholds the image given to prepareThreshold with the block size given
+	void threshold(int block){
+		if(thresMethod == thresSuppMethod.INTEGRAL_THRES)
+			integralThres.threshold(thresSizes[block], thresParam2, thres);
+		else
+			thresHold(thresMethod, thresSource, thres);
+	}
+	
+	// CONTOURS: finds the contours of the thresholded image
+	void findContours(){
 		// pass a copy because it modifies the src image
 		thres.copyTo(thres2);
+		// findContours appends to the list, so the contours of the previous frame must go first
+		releaseContours();
 		Imgproc.findContours(thres2, contours2, hierarchy2, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+		if(metrics != null)
+			metrics.addContours(contours2.size());
+	}
+	
+	// FILTER: marks in toRemove the candidates too close to a bigger one
+	void removeNearCandidates(int nCandidates){
+		if(toRemove.length < nCandidates){
+			toRemove = new int[2*nCandidates];
+			poolAllocations++;
+		}
+		for(int i=0;i<nCandidates;i++)
+			toRemove[i] = 0;
+		suppressNearCandidates(nCandidates);
+	}
+	
+	// DECODE: sets newMarkers to the candidates not removed yet that are valid markers,
+	// once each id. toRemove is overwritten
+	void identifyCandidates(int nCandidates){
+		// the detection in the incoming frame will be done in a different vector
+		// because this will allow the ontouchlistener in View
+		// to have a valid detectedMarkers vector longer
+		newMarkers.clear();
+		// identify the markers, the ones that are not valid are set to be removed as well.
+		// the canonical markers are taken from the grey frame so they don't need to be converted
+		if(tileSampling && nCandidates > 0)
+			copyFramePixels();
+		if(verifier != null && nCandidates > 1)
+			verifier.identify(frameGrey, nCandidates, toRemove);
+		else
+			for(int i=0;i<nCandidates;i++)
+				if(toRemove[i] == 0)
+					toRemove[i] = identify(frameGrey, i, scratch);
+		if(metrics != null){
+			metrics.setCandidates(nCandidates);
+			for(int i=0;i<nCandidates;i++)
+				if(toRemove[i] != 0)
+					metrics.reject(toRemove[i]);
+		}
+		// the corners are kept in the order they were found, the rotation
+		// of the code is applied to the pose in Utils.alignToId
+		for(int i=0;i<nCandidates;i++)
+			if(toRemove[i] == 0)
+				newMarkers.add(candidateMarkers.get(i));
+		// now sort by id and check that each marker is only detected once
+		Collections.sort(newMarkers);
+		int nMarkers = newMarkers.size();
+		for(int i=0;i<nMarkers;i++)
+			toRemove[i] = 0;
+		
+		for(int i=0;i<nMarkers-1;i++){
+			if(newMarkers.get(i).id == newMarkers.get(i+1).id)
+				if(newMarkers.get(i).perimeter()<newMarkers.get(i+1).perimeter())
+					toRemove[i] = REJECT_DUPLICATE;
+				else
+					toRemove[i+1] = REJECT_DUPLICATE;
+		}
 		
+		for(int i=nMarkers-1;i>=0;i--)// done in inverse order in case we need to remove more than one element
+			if(toRemove[i] != 0){
+				newMarkers.remove(i);
+				if(metrics != null)
+					metrics.reject(toRemove[i]);
+			}
+	}
+	
+	// REFINE: refines the corners of all the markers at once
+	void refineMarkers(){
+		if(refineCorners)
+			refineMarkerCorners(newMarkers);
+		if(predictRegions)
+			rememberBoxes(newMarkers);
+	}
+
+	// number of candidates found so far in the frame
+	int getCandidates(){
+		return candidateMarkers.size();
+	}
+
+	// the markers identified in the frame, before they are copied to the output of detect
+	Vector<Marker> getNewMarkers(){
+		return newMarkers;
+	}
+
+	/**
+	 * POSE: calculates the extrinsics of the markers given if the camera parameters are valid,
+	 * in parallel if there are verification threads and from their previous pose if
+	 * pose tracking is enabled.
+	 */
+	void calculateExtrinsics(Vector<Marker> markers, CameraParameters cp, float markerSizeMeters){
+		if(!cp.isValid() || markers.size() == 0)
+			return;
+		MatOfPoint3f obj = getObjPoints(markerSizeMeters);
+		if(poseTracker != null)
+			poseTracker.beginFrame(markers);
+		if(squarePose)
+			cp.getIntrinsics(); // read them once before the threads use them
+		if(verifier != null && markers.size() > 1)
+			verifier.calculateExtrinsics(markers, cp, obj);
+		else
+			for(int i=0;i<markers.size();i++)
+				calculateExtrinsics(markers.get(i), cp, obj, scratch);
+	}
+	
+	void calculateExtrinsics(Marker marker, CameraParameters cp, MatOfPoint3f objPoints, VerifyScratch s){
+		SquarePoseSolver solver = squarePose? s.poseSolver : null;
+		if(poseTracker != null)
+			poseTracker.calculateExtrinsics(marker, cp, objPoints, solver);
+		else if(solver != null)
+			marker.calculateExtrinsics(solver, cp.getIntrinsics(), s.pose, false);
+		else
+			marker.calculateExtrinsics(cp.getCameraMatrix(), cp.getDistCoeff(), objPoints);
+	}
+	
+	/**
+	 * Looks for quads likely to be a marker in the image given and adds them to the
+	 * candidates, with their corners in the coordinates of the input frame.
+	 * @param image the grey frame or a region of it
+	 * @param offsetX position of the region in the frame
+	 * @param offsetY position of the region in the frame
+	 * @param frameCols width of the whole frame, the minimum contour size depends on it
+	 * @param markerSizeMeters the size of the markers
+	 */
+	private void findCandidates(Mat image, int offsetX, int offsetY, int frameCols, float markerSizeMeters){
+		int firstCandidate = candidateMarkers.size();
+		long t = now();
+		// the contours are looked for in a reduced image if the markers are big enough
+		int levels = pyramidLevels(image);
+		int scale = 1<<levels;
+		int nThresholds = prepareThreshold(reduce(image, levels));
+		for(int i=0;i<nThresholds;i++){
+			threshold(i);
+			t = lap(Stage.THRESHOLD, t);
+			findContours();
+			t = lap(Stage.CONTOURS, t);
+			filterQuads(scale, offsetX, offsetY, frameCols, markerSizeMeters);
+			t = lap(Stage.FILTER, t);
+		}
+		if(levels > 0)
+			refineReducedCorners(frameGrey, scale, markerSizeMeters, firstCandidate);
+		lap(Stage.REFINE, t);
+	}
+	
+	// the image reduced the levels given, from the pyramid of the frame if it was given
+	private Mat reduce(Mat image, int levels){
+		// the pyramid given is the one of the whole frame, not of a region
+		if(levels > 0 && image == frameGrey && framePyramid != null)
+			return framePyramid.level(levels);
+		Mat search = image;
+		for(int l=0;l<levels;l++){
+			if(pyramid.size() <= l){
+				pyramid.add(new Mat());
+				poolAllocations++;
+			}
+			Imgproc.pyrDown(search, pyramid.get(l));
+			search = pyramid.get(l);
+		}
+		return search;
+	}
+	
+	/**
+	 * FILTER: analyzes the contours of the thresholded image looking for quads likely
+	 * to be a marker and adds them to the candidates.
+	 * @param scale the scale of the thresholded image with respect to the frame
+	 * @param offsetX position of the thresholded image in the frame
+	 * @param offsetY position of the thresholded image in the frame
+	 * @param frameCols width of the whole frame, the minimum contour size depends on it
+	 * @param markerSizeMeters the size of the markers
+	 */
+	void filterQuads(int scale, int offsetX, int offsetY, int frameCols, float markerSizeMeters){
 		// uncomment the following line if you want the contours drawn
 //		Imgproc.drawContours(frameDebug, contours2, -1, new Scalar(255,0,0),2);
 		// to each contour analyze if it is a paralelepiped likely to be a marker
-		MatOfPoint2f approxCurve = new MatOfPoint2f();
-//		List<Point> approxPoints = new ArrayList<Point>();
 		for(int i=0;i<contours2.size();i++){
-			MatOfPoint2f contour = new MatOfPoint2f();
 			contours2.get(i).convertTo(contour, CvType.CV_32FC2);
 			// first check if it has enough points
 			int contourSize = (int)contour.total();
-			if(contourSize > in.cols()/5){
+			if(contourSize > frameCols/scale/5){
 				Imgproc.approxPolyDP(contour, approxCurve, contourSize*0.05, true);
-//				Converters.Mat_to_vector_Point(approxCurve, approxPoints);
 				// check the polygon has 4 points
 				if(approxCurve.total()== 4){
 					// and if it is convex
-					MatOfPoint mat = new MatOfPoint();
-					approxCurve.convertTo(mat, CvType.CV_32SC2);
-					if(Imgproc.isContourConvex(mat)){
+					approxCurve.convertTo(approxInt, CvType.CV_32SC2);
+					if(Imgproc.isContourConvex(approxInt)){
 						// ensure the distance between consecutive points is large enough
 						double minDistFound = Double.MAX_VALUE;
-						float[] points = new float[8];// [x1 y1 x2 y2 x3 y3 x4 y4]
 						approxCurve.get(0,0,points);
+						// back to the coordinates of the input frame
+						for(int j=0;j<8;j+=2){
+							points[j] = points[j]*scale + offsetX;
+							points[j+1] = points[j+1]*scale + offsetY;
+						}
 						// look for the min distance
 						for(int j=0;j<=4;j+=2){
 							double d = Math.sqrt( (points[j]-points[(j+2)%4])*(points[j]-points[(j+2)%4]) +
@@ -99,134 +511,672 @@ public class MarkerDetector {
 								minDistFound = d;
 						}
 						if(minDistFound > MIN_DISTANCE){
+							// sort the points in anti-clockwise order
+					        // trace a line between the first and second point.
+					        // if the third point is at the right side, then the points are anti-clockwise
+							double dx1 = points[2] - points[0];
+							double dy1 = points[3] - points[1];
+							double dx2 = points[4] - points[0];
+							double dy2 = points[5] - points[1];
+							double o = dx1*dy2 - dy1*dx2;
+							if(o < 0.0){ // the third point is in the left side, we have to swap
+								swapCorners(points, 1, 3);
+							}
 							// create a candidate marker
-							Vector<Point> p = new Vector<Point>();
-							p.add(new Point(points[0],points[1]));
-							p.add(new Point(points[2],points[3]));
-							p.add(new Point(points[4],points[5]));
-							p.add(new Point(points[6],points[7]));
-							candidateMarkers.add(new Marker(markerSizeMeters, p));
-//							candidateMarkers.add(new Marker(markerSizeMeters));
-//							candidateMarkers.lastElement().add(new Point(points[0],points[1]));
-//							candidateMarkers.lastElement().add(new Point(points[2],points[3]));
-//							candidateMarkers.lastElement().add(new Point(points[4],points[5]));
-//							candidateMarkers.lastElement().add(new Point(points[6],points[7]));
+							addCandidate(markerSizeMeters, points);
 						}
+						else
+							reject(Rejection.SHORT_SIDE);
 					}
+					else
+						reject(Rejection.NOT_CONVEX);
 				}
+				else
+					reject(Rejection.NOT_QUAD);
 			}
+			else
+				reject(Rejection.SMALL_CONTOUR);
 		}// all contours processed, now we have the candidateMarkers
-		int nCandidates = candidateMarkers.size();
-		// sort the points in anti-clockwise order
-		for(int i=0;i<nCandidates;i++){
-			Marker marker = candidateMarkers.get(i);
-			List<Point> p = new Vector<Point>();
-			p = marker.toList();
-	        // trace a line between the first and second point.
-	        // if the third point is at the right side, then the points are anti-clockwise
-			double dx1 = p.get(1).x - p.get(0).x;
-			double dy1 = p.get(1).y - p.get(0).y;
-			double dx2 = p.get(2).x - p.get(0).x;
-			double dy2 = p.get(2).y - p.get(0).y;
-			double o = dx1*dy2 - dy1*dx2;
-			if(o < 0.0){ // the third point is in the left side, we have to swap
-				Collections.swap(p, 1, 3);
-				marker.setPoints(p);
+	}
+	
+	/**
+	 * Sets how many wrong bits are accepted in the code of a marker. They are
+	 * corrected to the nearest valid code. Up to getMaxCorrectableErrors of the
+	 * dictionary no marker is read with the id of another one.
+	 * @param errors 0, the default, only accepts exact codes.
+	 */
+	public void setMaxCodeErrors(int errors){
+		maxCodeErrors = errors;
+	}
+	
+	/**
+	 * returns the number of wrong bits accepted in the code of a marker.
+	 * @return the maximum hamming distance accepted.
+	 */
+	public int getMaxCodeErrors(){
+		return maxCodeErrors;
+	}
+	
+	/**
+	 * Sets the codes of the markers to look for, see Dictionary. By default the
+	 * 1024 codes of aruco, see ArucoDictionary.
+	 * @param dictionary the dictionary, its grid size can be different from 7x7.
+	 */
+	public void setDictionary(Dictionary dictionary){
+		this.dictionary = dictionary;
+		// 7 pixels per cell at least, as for the 7x7 grid of aruco
+		double side = Math.max(CANONICAL_SIZE.width, 7*dictionary.getGridSize());
+		canonicalSize = new Size(side, side);
+	}
+	
+	public Dictionary getDictionary(){
+		return dictionary;
+	}
+	
+	/**
+	 * Enables the search of the markers in a reduced image. The threshold and the
+	 * contours are calculated in the smallest level of the pyramid of the grey frame
+	 * where a marker of the size given still has enough pixels, and the corners found
+	 * are refined afterwards in the full resolution image. Markers smaller than the
+	 * size given may be lost.
+	 * @param pixels the minimum size of the side of a marker in the input frame,
+	 * 		0 (the default) searches in the full resolution image.
+	 */
+	public void setMinMarkerSize(int pixels){
+		minMarkerSizePix = pixels;
+	}
+	
+	/**
+	 * returns the minimum size of the markers looked for in a reduced image.
+	 * @return the size in pixels, 0 if the search is done in full resolution.
+	 */
+	public int getMinMarkerSize(){
+		return minMarkerSizePix;
+	}
+	
+	/**
+	 * Enables the refinement of the corners of the detected markers to sub-pixel
+	 * accuracy before their position is calculated. All of them are refined at once
+	 * with cornerSubPix in the grey image used for the detection.
+	 * @param enable true to refine the corners, it is disabled by default.
+	 */
+	public void setCornerRefinement(boolean enable){
+		refineCorners = enable;
+	}
+	
+	/**
+	 * returns whether the corners of the markers are refined.
+	 * @return true if the refinement is enabled.
+	 */
+	public boolean isCornerRefinement(){
+		return refineCorners;
+	}
+	
+	/**
+	 * Set the parameters of the corner refinement, see opencv doc of cornerSubPix for more info
+	 * @param winSize half of the side of the search window, it should be smaller than
+	 * 		half the side of the smallest marker expected. 5 by default.
+	 * @param maxIter maximum number of iterations for each corner. 30 by default.
+	 * @param epsilon the refinement of a corner stops when it moves less than this. 0.1 by default.
+	 */
+	public void setCornerRefinementParams(int winSize, int maxIter, double epsilon){
+		refineWin.width = refineWin.height = winSize;
+		refineCriteria.maxCount = maxIter;
+		refineCriteria.epsilon = epsilon;
+	}
+	
+	/**
+	 * Get the parameters of the corner refinement
+	 * they will be returned as a 3 items double array: winSize, maxIter and epsilon.
+	 */
+	public double[] getCornerRefinementParams(){
+		double[] ret = {refineWin.width, refineCriteria.maxCount, refineCriteria.epsilon};
+		return ret;
+	}
+	
+	/**
+	 * Sets the regions of the frame where the markers are looked for. The threshold and
+	 * the contours are only calculated inside them, the markers found have their corners
+	 * in the coordinates of the whole frame anyway. They are used in every detection,
+	 * except the periodic full frame ones, until they are set to null.
+	 * @param regions the regions of interest, null to search the whole frame.
+	 */
+	public void setRegionsOfInterest(List<Rect> regions){
+		userRegions = regions;
+		framesSinceSweep = 0;
+	}
+	
+	/**
+	 * returns the regions of interest set, null if none.
+	 */
+	public List<Rect> getRegionsOfInterest(){
+		return userRegions;
+	}
+	
+	/**
+	 * Enables looking for the markers only around the ones detected in the previous
+	 * frame. Their bounding boxes are expanded by the margin set and the whole frame
+	 * is searched periodically, or when no marker was found, so new markers appear.
+	 * Regions set with setRegionsOfInterest take precedence.
+	 * @param enable true to predict the regions, disabled by default.
+	 */
+	public void setRoiPrediction(boolean enable){
+		predictRegions = enable;
+		nPrevBoxes = 0;
+	}
+	
+	public boolean isRoiPrediction(){
+		return predictRegions;
+	}
+	
+	/**
+	 * Sets how much the bounding box of a marker is expanded to predict where it will be.
+	 * @param margin fraction of the largest side of the box added on each side, 0.5 by default.
+	 */
+	public void setRoiMargin(double margin){
+		roiMargin = margin;
+	}
+	
+	public double getRoiMargin(){
+		return roiMargin;
+	}
+	
+	/**
+	 * Sets how often the whole frame is searched when regions of interest are used.
+	 * @param frames the number of frames between full searches, 10 by default. 0 never
+	 * 		searches the whole frame while there are regions of interest.
+	 */
+	public void setFullSweepInterval(int frames){
+		fullSweepInterval = frames;
+	}
+	
+	public int getFullSweepInterval(){
+		return fullSweepInterval;
+	}
+	
+	/**
+	 * Sets the number of threads used to identify the candidates and to calculate
+	 * the position of the markers. The detected markers are the same and in the same
+	 * order whatever the number of threads.
+	 * @param nThreads 1, the default, does everything in the calling thread. 0 uses
+	 * one thread per available core.
+	 */
+	public void setVerificationThreads(int nThreads){
+		if(nThreads == 0)
+			nThreads = Runtime.getRuntime().availableProcessors();
+		if(verifier != null){
+			if(verifier.size() == nThreads)
+				return;
+			verifier.shutdown();
+			verifier = null;
+		}
+		if(nThreads > 1)
+			verifier = new ParallelVerifier(this, nThreads);
+	}
+	
+	/**
+	 * returns the number of threads used to verify the candidates.
+	 * @return 1 if they are verified in the calling thread.
+	 */
+	public int getVerificationThreads(){
+		return verifier == null? 1 : verifier.size();
+	}
+	
+	/**
+	 * Stops the threads used to verify candidates, if any, and frees the headers of
+	 * the regions of interest, which keep the frames they were taken from. The
+	 * detector can still be used afterwards, in the calling thread.
+	 */
+	public void release(){
+		if(verifier != null){
+			verifier.shutdown();
+			verifier = null;
+		}
+		for(int i=0;i<ROI_HEADERS;i++){
+			if(roiHeaders[i] != null)
+				roiHeaders[i].release();
+			roiHeaders[i] = null;
+		}
+	}
+	
+	/**
+	 * Enables or disables the recycling of markers between frames. When enabled the
+	 * markers returned by detect are owned by this detector and are only valid until
+	 * the next call to detect, after warm-up no markers are created any more.
+	 * @param enable true to recycle the markers.
+	 */
+	public void setPooling(boolean enable){
+		pooling = enable;
+		if(!pooling)
+			markerPool.clear();
+	}
+	
+	/**
+	 * returns whether the markers are being recycled between frames.
+	 * @return true if pooling is enabled.
+	 */
+	public boolean isPooling(){
+		return pooling;
+	}
+	
+	/**
+	 * Number of objects this detector has had to create to hold candidates and
+	 * scratch data since it was created: markers, scratch arrays grown, pyramid levels
+	 * and headers of the regions of interest. With pooling enabled it stays constant
+	 * once the detector has seen the largest number of candidates of the scene, as
+	 * long as the regions searched do not move.
+	 * @return the number of allocations done by the detector.
+	 */
+	public long getPoolAllocations(){
+		return poolAllocations;
+	}
+	
+	private void addCandidate(float markerSizeMeters, float[] p){
+		int n = candidateMarkers.size();
+		if(candidateCorners.length < 8*(n+1)){
+			float[] grown = new float[2*candidateCorners.length];
+			System.arraycopy(candidateCorners, 0, grown, 0, 8*n);
+			candidateCorners = grown;
+			poolAllocations++;
+		}
+		System.arraycopy(p, 0, candidateCorners, 8*n, 8);
+		Marker marker;
+		if(pooling && poolUsed < markerPool.size()){
+			marker = markerPool.get(poolUsed);
+			marker.reset(markerSizeMeters, p);
+		}
+		else{
+			Vector<Point> corners = new Vector<Point>();
+			corners.add(new Point(p[0],p[1]));
+			corners.add(new Point(p[2],p[3]));
+			corners.add(new Point(p[4],p[5]));
+			corners.add(new Point(p[6],p[7]));
+			marker = new Marker(markerSizeMeters, corners);
+			if(pooling){
+				markerPool.add(marker);
+				poolAllocations++;
 			}
-		}// points sorted in anti-clockwise order
-
-		// remove the elements whose corners are to close to each other // TODO necessary?
-		Vector<Integer> tooNearCandidates = new Vector<Integer>(); // stores the indexes in the candidateMarkers
-										   // i.e [2,3,4,5] the marker 2 is too close to 3 and 4 to 5
-		for(int i=0;i<nCandidates;i++){
-			Marker toMarker = candidateMarkers.get(i);
-			List<Point> toPoints = new Vector<Point>();
-			toPoints = toMarker.toList();
-			// calculate the average distance of each corner to the nearest corner in the other marker
-			for(int j=i+1;j<nCandidates;j++){
-				float dist=0;
-				Marker fromMarker = candidateMarkers.get(j);
-				List<Point> fromPoints = new Vector<Point>();
-				fromPoints = fromMarker.toList();
-				// unrolling loop
-				dist+=Math.sqrt((fromPoints.get(0).x-toPoints.get(0).x)*(fromPoints.get(0).x-toPoints.get(0).x)+
-						(fromPoints.get(0).y-toPoints.get(0).y)*(fromPoints.get(0).y-toPoints.get(0).y));
-
-				dist+=Math.sqrt((fromPoints.get(1).x-toPoints.get(1).x)*(fromPoints.get(1).x-toPoints.get(1).x)+
-						(fromPoints.get(1).y-toPoints.get(1).y)*(fromPoints.get(1).y-toPoints.get(1).y));
-				
-				dist+=Math.sqrt((fromPoints.get(2).x-toPoints.get(2).x)*(fromPoints.get(2).x-toPoints.get(2).x)+
-						(fromPoints.get(2).y-toPoints.get(2).y)*(fromPoints.get(2).y-toPoints.get(2).y));
-				
-				dist+=Math.sqrt((fromPoints.get(3).x-toPoints.get(3).x)*(fromPoints.get(3).x-toPoints.get(3).x)+
-						(fromPoints.get(3).y-toPoints.get(3).y)*(fromPoints.get(3).y-toPoints.get(3).y));
-				dist = dist/4;
-				if(dist < MIN_DISTANCE){
-					tooNearCandidates.add(i);
-					tooNearCandidates.add(j);
-				}
+		}
+		poolUsed++;
+		candidateMarkers.add(marker);
+	}
+	
+	// fills roiBoxes with the regions to search in this frame, 0 means the whole frame
+	private int regionsToSearch(int cols, int rows){
+		int n = 0;
+		if(userRegions != null && !userRegions.isEmpty()){
+			n = userRegions.size();
+			ensureRoiBoxes(n);
+			for(int i=0;i<n;i++){
+				Rect r = userRegions.get(i);
+				roiBoxes[4*i] = r.x;
+				roiBoxes[4*i+1] = r.y;
+				roiBoxes[4*i+2] = r.x+r.width;
+				roiBoxes[4*i+3] = r.y+r.height;
 			}
 		}
-		Vector<Integer> toRemove = new Vector<Integer>();// 1 means to remove
-		for(int i=0;i<nCandidates;i++)
-			toRemove.add(0);
-		// set to remove the marker with the smaller perimeter
-		for(int i=0;i<tooNearCandidates.size();i+=2){
-			Marker first = candidateMarkers.get(tooNearCandidates.get(i));
-			Marker second = candidateMarkers.get(tooNearCandidates.get(i+1));
-			if(first.perimeter()<second.perimeter())
-				toRemove.set(tooNearCandidates.get(i), 1);
-			else
-				toRemove.set(tooNearCandidates.get(i+1), 1);
+		else if(predictRegions && nPrevBoxes > 0){
+			n = nPrevBoxes;
+			ensureRoiBoxes(n);
+			for(int i=0;i<n;i++){
+				int x0 = prevBoxes[4*i], y0 = prevBoxes[4*i+1];
+				int x1 = prevBoxes[4*i+2], y1 = prevBoxes[4*i+3];
+				int m = (int)Math.ceil(roiMargin*Math.max(x1-x0, y1-y0));
+				roiBoxes[4*i] = x0-m;
+				roiBoxes[4*i+1] = y0-m;
+				roiBoxes[4*i+2] = x1+m;
+				roiBoxes[4*i+3] = y1+m;
+			}
 		}
-
-		// identify the markers
-		for(int i=0;i<nCandidates;i++){
-			if(toRemove.get(i) == 0){
-				Marker marker = candidateMarkers.get(i);
-				Mat canonicalMarker = new Mat();
-				warp(in, canonicalMarker, new Size(50,50), marker.toList());
-				marker.setMat(canonicalMarker);
-				marker.extractCode();
-				if(marker.checkBorder()){
-					int id = marker.calculateMarkerId();
-					if(id != -1){
-						// rotate the points of the marker so they are always in the same order no matter the camera orientation
-						Collections.rotate(marker.toList(), 4-marker.getRotations());
-
-						newMarkers.add(marker);
-
+		if(n == 0 || (fullSweepInterval > 0 && framesSinceSweep+1 >= fullSweepInterval)){
+			framesSinceSweep = 0;
+			return 0;
+		}
+		framesSinceSweep++;
+		// clip to the frame and drop the empty ones
+		int valid = 0;
+		for(int i=0;i<n;i++){
+			int x0 = Math.max(0, roiBoxes[4*i]), y0 = Math.max(0, roiBoxes[4*i+1]);
+			int x1 = Math.min(cols, roiBoxes[4*i+2]), y1 = Math.min(rows, roiBoxes[4*i+3]);
+			if(x1-x0 > MIN_DISTANCE && y1-y0 > MIN_DISTANCE){
+				roiBoxes[4*valid] = x0;
+				roiBoxes[4*valid+1] = y0;
+				roiBoxes[4*valid+2] = x1;
+				roiBoxes[4*valid+3] = y1;
+				valid++;
+			}
+		}
+		// merge the overlapping ones so no area is searched twice
+		boolean merged = true;
+		while(merged){
+			merged = false;
+			for(int i=0;i<valid && !merged;i++)
+				for(int j=i+1;j<valid && !merged;j++)
+					if(roiBoxes[4*i] < roiBoxes[4*j+2] && roiBoxes[4*j] < roiBoxes[4*i+2] &&
+							roiBoxes[4*i+1] < roiBoxes[4*j+3] && roiBoxes[4*j+1] < roiBoxes[4*i+3]){
+						roiBoxes[4*i] = Math.min(roiBoxes[4*i], roiBoxes[4*j]);
+						roiBoxes[4*i+1] = Math.min(roiBoxes[4*i+1], roiBoxes[4*j+1]);
+						roiBoxes[4*i+2] = Math.max(roiBoxes[4*i+2], roiBoxes[4*j+2]);
+						roiBoxes[4*i+3] = Math.max(roiBoxes[4*i+3], roiBoxes[4*j+3]);
+						valid--;
+						System.arraycopy(roiBoxes, 4*valid, roiBoxes, 4*j, 4);
+						merged = true;
 					}
-				}
+		}
+		if(valid == 0)
+			framesSinceSweep = 0;
+		return valid;
+	}
+	
+	/**
+	 * Runs only the suppression of the candidates too close to each other, as detect
+	 * does, on the corners given. For the benchmarks.
+	 * @param corners the corners of the candidates, 8 floats per candidate.
+	 * @param n number of candidates.
+	 * @return the number of candidates removed.
+	 */
+	int suppressNearCandidates(float[] corners, int n){
+		if(candidateCorners.length < 8*n){
+			candidateCorners = new float[8*n];
+			poolAllocations++;
+		}
+		System.arraycopy(corners, 0, candidateCorners, 0, 8*n);
+		removeNearCandidates(n);
+		int removed = 0;
+		for(int i=0;i<n;i++)
+			if(toRemove[i] != 0)
+				removed++;
+		return removed;
+	}
+	
+	// returns a header of the region of the frame given, the same one as long as the frame
+	// holds the same buffer, so a fixed region costs no native allocation per frame
+	private Mat regionHeader(Mat frame, int x0, int y0, int x1, int y1){
+		long data = frame.dataAddr();
+		int cols = frame.cols(), rows = frame.rows();
+		for(int i=0;i<ROI_HEADERS;i++){
+			int k = 7*i;
+			if(roiHeaders[i] != null && roiKeys[k] == data && roiKeys[k+1] == cols && roiKeys[k+2] == rows &&
+					roiKeys[k+3] == x0 && roiKeys[k+4] == y0 && roiKeys[k+5] == x1 && roiKeys[k+6] == y1)
+				return roiHeaders[i];
+		}
+		// the oldest header is replaced
+		int i = nextRoiHeader;
+		nextRoiHeader = (nextRoiHeader+1) % ROI_HEADERS;
+		if(roiHeaders[i] != null)
+			roiHeaders[i].release();
+		roiHeaders[i] = frame.submat(y0, y1, x0, x1);
+		poolAllocations++;
+		int k = 7*i;
+		roiKeys[k] = data;
+		roiKeys[k+1] = cols;
+		roiKeys[k+2] = rows;
+		roiKeys[k+3] = x0;
+		roiKeys[k+4] = y0;
+		roiKeys[k+5] = x1;
+		roiKeys[k+6] = y1;
+		return roiHeaders[i];
+	}
+	
+	private void ensureRoiBoxes(int n){
+		if(roiBoxes.length < 4*n){
+			roiBoxes = new int[8*n];
+			poolAllocations++;
+		}
+	}
+	
+	// stores the bounding box of each marker to predict the regions of the next frame
+	private void rememberBoxes(Vector<Marker> markers){
+		int n = markers.size();
+		if(prevBoxes.length < 4*n){
+			prevBoxes = new int[8*n];
+			poolAllocations++;
+		}
+		for(int i=0;i<n;i++){
+			markers.get(i).getCorners(points, 0);
+			float x0 = points[0], y0 = points[1], x1 = points[0], y1 = points[1];
+			for(int k=1;k<4;k++){
+				x0 = Math.min(x0, points[2*k]);
+				y0 = Math.min(y0, points[2*k+1]);
+				x1 = Math.max(x1, points[2*k]);
+				y1 = Math.max(y1, points[2*k+1]);
 			}
+			prevBoxes[4*i] = (int)Math.floor(x0);
+			prevBoxes[4*i+1] = (int)Math.floor(y0);
+			prevBoxes[4*i+2] = (int)Math.ceil(x1)+1;
+			prevBoxes[4*i+3] = (int)Math.ceil(y1)+1;
 		}
-		// TODO refine using pixel accuracy
-		
-		// now sort by id and check that each marker is only detected once
-		Collections.sort(newMarkers);
-		toRemove.clear();
-		for(int i=0;i<newMarkers.size();i++)
-			toRemove.add(0);
-		
-		for(int i=0;i<newMarkers.size()-1;i++){
-			if(newMarkers.get(i).id == newMarkers.get(i+1).id)
-				if(newMarkers.get(i).perimeter()<newMarkers.get(i+1).perimeter())
-					toRemove.set(i, 1);
-				else
-					toRemove.set(i+1, 1);
+		nPrevBoxes = n;
+	}
+	
+	// number of times the frame can be reduced keeping the markers above the minimum size
+	private int pyramidLevels(Mat frame){
+		int levels = 0;
+		if(minMarkerSizePix <= 0)
+			return 0;
+		while((minMarkerSizePix>>(levels+1)) >= MIN_REDUCED_MARKER_SIZE &&
+				(frame.cols()>>(levels+1)) >= MIN_REDUCED_MARKER_SIZE &&
+				(frame.rows()>>(levels+1)) >= MIN_REDUCED_MARKER_SIZE)
+			levels++;
+		return levels;
+	}
+	
+	// the corners found in a reduced image are only accurate to the scale of that image,
+	// all of them are refined at once in the full resolution grey image
+	private void refineReducedCorners(Mat grey, int scale, float markerSizeMeters, int first){
+		int n = candidateMarkers.size()-first;
+		if(n == 0)
+			return;
+		ensureRefineBuffer(n);
+		System.arraycopy(candidateCorners, 8*first, refineBuffer, 0, 8*n);
+		pyramidWin.width = pyramidWin.height = scale;
+		cornerSubPix(grey, refineBuffer, n, pyramidWin, pyramidCriteria);
+		System.arraycopy(refineBuffer, 0, candidateCorners, 8*first, 8*n);
+		for(int i=first;i<first+n;i++){
+			System.arraycopy(candidateCorners, 8*i, points, 0, 8);
+			candidateMarkers.get(i).reset(markerSizeMeters, points);
 		}
-		
-		for(int i=toRemove.size()-1;i>=0;i--)// done in inverse order in case we need to remove more than one element
-			if(toRemove.get(i) == 1)
-				newMarkers.remove(i);
-		
-		// detect the position of markers if desired
-		for(int i=0;i<newMarkers.size();i++){
-			if(cp.isValid())
-				newMarkers.get(i).calculateExtrinsics(cp.getCameraMatrix(), cp.getDistCoeff(), markerSizeMeters);
+	}
+	
+	private void refineMarkerCorners(Vector<Marker> markers){
+		int nMarkers = markers.size();
+		if(nMarkers == 0)
+			return;
+		ensureRefineBuffer(nMarkers);
+		for(int i=0;i<nMarkers;i++)
+			markers.get(i).getCorners(refineBuffer, 8*i);
+		cornerSubPix(frameGrey, refineBuffer, nMarkers, refineWin, refineCriteria);
+		for(int i=0;i<nMarkers;i++)
+			markers.get(i).setCorners(refineBuffer, 8*i);
+	}
+	
+	/**
+	 * Enables or disables the tracking of the pose of the markers. When enabled the
+	 * extrinsics of a marker seen in the previous frame are calculated starting from
+	 * its previous pose, which is faster and more stable, see PoseTracker.
+	 * @param enable true to track the poses, false by default.
+	 */
+	public void setPoseTracking(boolean enable){
+		if(!enable)
+			poseTracker = null;
+		else if(poseTracker == null)
+			poseTracker = new PoseTracker();
+	}
+	
+	/**
+	 * returns the pose tracker in use, to tune it.
+	 * @return null if pose tracking is disabled.
+	 */
+	public PoseTracker getPoseTracker(){
+		return poseTracker;
+	}
+	
+	/**
+	 * Chooses how the extrinsics of the markers are calculated. By default solvePnP is
+	 * used, the square pose solver calculates them in java in closed form refined with
+	 * a few Gauss-Newton iterations, without native calls, see SquarePoseSolver.
+	 * @param enable true to use the square pose solver.
+	 */
+	public void setSquarePoseSolver(boolean enable){
+		squarePose = enable;
+	}
+	
+	public boolean isSquarePoseSolver(){
+		return squarePose;
+	}
+	
+	/**
+	 * Chooses how the code of the candidates is read. By default each candidate is
+	 * warped to a canonical image which is thresholded with Otsu. With tile sampling
+	 * the grey frame is copied once per frame and only a few points of each cell are
+	 * read, through the homography of the candidate, with no native calls per candidate.
+	 * @param enable true to sample the cells directly from the frame.
+	 */
+	public void setTileSampling(boolean enable){
+		tileSampling = enable;
+		if(!tileSampling)
+			framePixels = new byte[0];
+	}
+	
+	public boolean isTileSampling(){
+		return tileSampling;
+	}
+	
+	// copies the grey frame to java in a single call for the tile sampler
+	private void copyFramePixels(){
+		frameCols = frameGrey.cols();
+		frameRows = frameGrey.rows();
+		if(framePixels.length != frameCols*frameRows){
+			framePixels = new byte[frameCols*frameRows];
+			poolAllocations++;
 		}
-		detectedMarkers.setSize(newMarkers.size());
-		Collections.copy(detectedMarkers, newMarkers);
+		frameGrey.get(0, 0, framePixels);
+	}
+	
+	private void ensureRefineBuffer(int nQuads){
+		if(refineBuffer.length < 8*nQuads){
+			refineBuffer = new float[16*nQuads];
+			poolAllocations++;
+		}
+	}
+	
+	// refines the 4 corners of n quads stored one after another in a single native call
+	private void cornerSubPix(Mat grey, float[] corners, int n, Size win, TermCriteria criteria){
+		refineMat.create(4*n, 1, CvType.CV_32FC2);
+		refineMat.put(0, 0, corners);
+		Imgproc.cornerSubPix(grey, refineMat, win, refineZeroZone, criteria);
+		refineMat.get(0, 0, corners);
+	}
+	
+	/**
+	 * returns the grey image of the last frame given to detect.
+	 */
+	Mat getGrey(){
+		return frameGrey;
+	}
+	
+	MatOfPoint3f getObjPoints(float markerSizeMeters){
+		if(objPoints == null || objPointsSize != markerSizeMeters){
+			// set the obj 3D points
+			double halfSize = markerSizeMeters/2.0;
+			if(objPoints == null){
+				objPoints = new MatOfPoint3f();
+				poolAllocations++;
+			}
+			objPoints.fromArray(new Point3(-halfSize, -halfSize,0),
+								new Point3(-halfSize,  halfSize,0),
+								new Point3( halfSize,  halfSize,0),
+								new Point3( halfSize, -halfSize,0));
+			objPointsSize = markerSizeMeters;
+		}
+		return objPoints;
+	}
+	
+	/**
+	 * Marks to be removed the candidate with the smaller perimeter of each pair whose
+	 * corners are closer than MIN_DISTANCE on average. If the corners are that close
+	 * the centroids are closer than MIN_DISTANCE too, so the centroids are hashed in a
+	 * grid of cells of that size and each candidate is only compared with the ones in
+	 * its cell and the 8 around it, instead of with all the others.
+	 */
+	private void suppressNearCandidates(int n){
+		int tableSize = 16;
+		while(tableSize < 2*n)
+			tableSize <<= 1;
+		if(cellHead.length < tableSize){
+			cellHead = new int[tableSize];
+			poolAllocations++;
+		}
+		if(cellNext.length < n){
+			cellNext = new int[2*n];
+			cellX = new int[2*n];
+			cellY = new int[2*n];
+			poolAllocations += 3;
+		}
+		for(int b=0;b<tableSize;b++)
+			cellHead[b] = -1;
+		for(int i=0;i<n;i++){
+			float cx = 0, cy = 0;
+			for(int k=0;k<4;k++){
+				cx += candidateCorners[8*i+2*k];
+				cy += candidateCorners[8*i+2*k+1];
+			}
+			cellX[i] = (int)Math.floor(cx/(4*MIN_DISTANCE));
+			cellY[i] = (int)Math.floor(cy/(4*MIN_DISTANCE));
+			// compare with the candidates already in the grid, each pair is seen once
+			for(int gy=cellY[i]-1;gy<=cellY[i]+1;gy++)
+				for(int gx=cellX[i]-1;gx<=cellX[i]+1;gx++)
+					for(int j=cellHead[cellHash(gx, gy, tableSize)];j!=-1;j=cellNext[j]){
+						if(cellX[j] != gx || cellY[j] != gy)
+							continue; // another cell in the same bucket
+						// calculate the average distance of each corner to the nearest corner in the other marker
+						float dist=0;
+						for(int k=0;k<4;k++){
+							float dx = candidateCorners[8*i+2*k]-candidateCorners[8*j+2*k];
+							float dy = candidateCorners[8*i+2*k+1]-candidateCorners[8*j+2*k+1];
+							dist+=Math.sqrt(dx*dx+dy*dy);
+						}
+						dist = dist/4;
+						if(dist < MIN_DISTANCE){
+							if(perimeter(candidateCorners, j)<perimeter(candidateCorners, i))
+								toRemove[j] = REJECT_TOO_CLOSE;
+							else
+								toRemove[i] = REJECT_TOO_CLOSE;
+						}
+					}
+			int b = cellHash(cellX[i], cellY[i], tableSize);
+			cellNext[i] = cellHead[b];
+			cellHead[b] = i;
+		}
+	}
+	
+	private static int cellHash(int x, int y, int tableSize){
+		return (x*73856093 ^ y*19349663) & (tableSize-1);
+	}
+	
+	private void releaseContours(){
+		for(int i=0;i<contours2.size();i++)
+			contours2.get(i).release();
+		contours2.clear();
+	}
+	
+	private static void swapCorners(float[] p, int a, int b){
+		float x = p[2*a], y = p[2*a+1];
+		p[2*a] = p[2*b];
+		p[2*a+1] = p[2*b+1];
+		p[2*b] = x;
+		p[2*b+1] = y;
+	}
+	
+	// same as Marker.perimeter but over the corners of the i-th candidate
+	private static double perimeter(float[] corners, int i){
+		double sum=0;
+		for(int k=0;k<4;k++){
+			float dx = corners[8*i+2*k]-corners[8*i+2*((k+1)%4)];
+			float dy = corners[8*i+2*k+1]-corners[8*i+2*((k+1)%4)+1];
+			sum+=Math.sqrt(dx*dx+dy*dy);
+		}
+		return sum;
 	}
 	
     /**
@@ -249,6 +1199,24 @@ public class MarkerDetector {
 		return ret;
 	}
 	
+	/**
+	 * Sets several block sizes for the INTEGRAL_THRES method. The image is thresholded
+	 * with each of them and the candidates of all of them are merged, which helps to
+	 * detect markers of very different sizes in the same frame.
+	 * @param sizes odd block sizes, null to use only the first parameter of the threshold.
+	 */
+	public void setThresholdBlockSizes(int[] sizes){
+		blockSizes = sizes;
+	}
+	
+	/**
+	 * returns the block sizes used by INTEGRAL_THRES, null if only the first parameter
+	 * of the threshold is used.
+	 */
+	public int[] getThresholdBlockSizes(){
+		return blockSizes;
+	}
+	
 	/**
 	 * sets the method to be used in the threshold necessary to the marker detection.
 	 * @param method must be a supported method.
@@ -278,30 +1246,96 @@ public class MarkerDetector {
 		case CANNY:
 			Imgproc.Canny(src, dst, 10, 220);// TODO this parameters??
 			break;
+		default: // INTEGRAL_THRES is done in findCandidates
+			break;
+		}
+	}
+	
+	/**
+	 * Checks if the i-th candidate is a valid marker: reads its code from the frame
+	 * and looks for its id. Different threads can verify different candidates at the
+	 * same time as long as each one uses its own scratch.
+	 * @param in the grey frame captured
+	 * @param i index of the candidate
+	 * @param s the scratch to use
+	 * @return 0 if the candidate is a marker, its id is set in that case, otherwise the
+	 * 		reason to reject it, see DetectionMetrics.rejectionCode
+	 */
+	int identify(Mat in, int i, VerifyScratch s){
+		Marker marker = candidateMarkers.get(i);
+		System.arraycopy(candidateCorners, 8*i, s.points, 0, 8);
+		marker.setCodeSize(dictionary.getGridSize());
+		if(tileSampling){
+			if(!s.sampler.sample(framePixels, frameCols, frameRows, s.points, marker.getCode()))
+				return REJECT_UNREADABLE;
+		}
+		else{
+			if(!warp(in, s, canonicalSize))
+				return REJECT_UNREADABLE;
+			marker.setMat(s.canonicalMarker);
+			marker.extractCode();
 		}
+		if(!marker.checkBorder())
+			return REJECT_BORDER;
+		if(marker.calculateMarkerId(dictionary, maxCodeErrors) == -1)
+			return REJECT_CODE;
+		return 0;
+	}
+	
+	/**
+	 * Sets the object that receives the timings and counts of each frame.
+	 * @param metrics the metrics to fill, null by default to measure nothing.
+	 */
+	public void setMetrics(DetectionMetrics metrics){
+		this.metrics = metrics;
+	}
+	
+	public DetectionMetrics getMetrics(){
+		return metrics;
+	}
+	
+	// the current time if the metrics are wanted
+	private long now(){
+		return metrics == null? 0 : System.nanoTime();
+	}
+	
+	private long lap(Stage stage, long start){
+		return metrics == null? 0 : metrics.lap(stage, start);
+	}
+	
+	private void reject(Rejection reason){
+		if(metrics != null)
+			metrics.reject(reason);
 	}
 	
 	/**
 	 * This fits a mat containing 4 vertices captured through the camera
 	 * into a canonical mat.
 	 * @param in the frame captured
-	 * @param out the canonical mat
+	 * @param s holds the coordinates of the points in the "in" mat and
+	 * 		receives the canonical mat
 	 * @param size the size of the canonical mat we want to create
-	 * @param points the coordinates of the points in the "in" mat 
-	 */
-	private void warp(Mat in, Mat out, Size size, List<Point> points){
-		Mat pointsIn = new Mat(4,1,CvType.CV_32FC2);
-		Mat pointsRes = new Mat(4,1,CvType.CV_32FC2);
-		pointsIn.put(0,0, points.get(0).x,points.get(0).y,
-						  points.get(1).x,points.get(1).y,
-						  points.get(2).x,points.get(2).y,
-						  points.get(3).x,points.get(3).y);
-		pointsRes.put(0,0, 0,0,
-						   size.width-1,0,
-						   size.width-1,size.height-1,
-						   0,size.height-1);
-		Mat m = new Mat();
-		m = Imgproc.getPerspectiveTransform(pointsIn, pointsRes);
-		Imgproc.warpPerspective(in, out, m, size);
+	 * @return false if the points do not define a valid transform
+	 */
+	private boolean warp(Mat in, VerifyScratch s, Size size){
+		if(!Utils.perspectiveTransform(s.points, size.width, size.height, s.warpScratch, s.warpCoeffs))
+			return false;
+		s.warpMatrix.put(0, 0, s.warpCoeffs);
+		Imgproc.warpPerspective(in, s.canonicalMarker, s.warpMatrix, size);
+		return true;
+	}
+	
+	/**
+	 * Mats and buffers needed to verify a candidate.
+	 */
+	static class VerifyScratch {
+		final float[] points = new float[8]; // [x1 y1 x2 y2 x3 y3 x4 y4]
+		final Mat canonicalMarker = new Mat();
+		final Mat warpMatrix = new Mat(3,3,CvType.CV_64FC1);
+		final double[] warpScratch = new double[72];
+		final double[] warpCoeffs = new double[9];
+		final TileSampler sampler = new TileSampler();
+		final SquarePoseSolver poseSolver = new SquarePoseSolver();
+		final double[] pose = new double[12];
 	}
 }
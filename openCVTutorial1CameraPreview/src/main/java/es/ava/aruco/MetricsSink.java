@@ -0,0 +1,13 @@
+package es.ava.aruco;
+
+/**
+ * Receives the metrics of every frame, see DetectionMetrics.setSink.
+ */
+public interface MetricsSink {
+	/**
+	 * Called from the detecting thread once the frame is finished. The metrics are
+	 * reused for the next frame, so anything to keep must be copied.
+	 * @param metrics the metrics of the frame.
+	 */
+	void frameDone(DetectionMetrics metrics);
+}
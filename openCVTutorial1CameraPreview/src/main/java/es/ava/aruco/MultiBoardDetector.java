@@ -0,0 +1,220 @@
+package es.ava.aruco;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import org.opencv.core.CvException;
+
+/**
+ * Detects several boards at once. The boards are registered once and their ids,
+ * which must not be shared between boards, are put in a single index, so each
+ * frame the detected markers are split among the boards with one lookup per marker.
+ * Then the pose of each board is calculated by its own BoardDetector, in parallel
+ * if there is more than one thread. Each board is found as BoardDetector.detect would
+ * find it among all the markers of the frame: as there, a board gets a pose only if
+ * more than one marker was detected in the frame, even if just one is of the board.
+ */
+public class MultiBoardDetector {
+	private final List<BoardConfiguration> configurations;
+	private final List<BoardDetector> detectors;
+	private final List<Board> boards;
+	private final List<Vector<Marker>> boardMarkers;
+	private float[] probabilities;
+	private IdTable boardOf; // index of the board of each id, null when it must be built again
+
+	private WorkerPool pool;
+	private final List<Callable<Void>> tasks;
+	// the frame being processed, set before the tasks are run
+	private CameraParameters cp;
+	private float markerSizeMeters;
+	private int frameMarkers;
+
+	public MultiBoardDetector(){
+		configurations = new ArrayList<BoardConfiguration>();
+		detectors = new ArrayList<BoardDetector>();
+		boards = new ArrayList<Board>();
+		boardMarkers = new ArrayList<Vector<Marker>>();
+		probabilities = new float[0];
+		boardOf = null;
+		pool = null;
+		tasks = new ArrayList<Callable<Void>>();
+	}
+
+	/**
+	 * Adds a board to look for.
+	 * @param conf the configuration of the board, none of its ids can be in the boards
+	 * 		already added.
+	 * @return the index of the board, to get it after detect.
+	 * @throws CvException if an id of the board belongs to another one.
+	 */
+	public int addBoard(BoardConfiguration conf) throws CvException{
+		for(int i=0;i<configurations.size();i++){
+			BoardConfiguration other = configurations.get(i);
+			for(int y=0;y<conf.height;y++)
+				for(int x=0;x<conf.width;x++)
+					if(conf.markersId[y][x] >= 0 && contains(other, conf.markersId[y][x]))
+						throw new CvException("the id "+conf.markersId[y][x]+" is already in the board "+i);
+		}
+		configurations.add(conf);
+		detectors.add(new BoardDetector());
+		boards.add(new Board());
+		boardMarkers.add(new Vector<Marker>());
+		probabilities = new float[configurations.size()];
+		boardOf = null;
+		return configurations.size()-1;
+	}
+
+	/**
+	 * Removes all the boards.
+	 */
+	public void clear(){
+		configurations.clear();
+		detectors.clear();
+		boards.clear();
+		boardMarkers.clear();
+		probabilities = new float[0];
+		boardOf = null;
+	}
+
+	/**
+	 * returns the number of boards registered.
+	 */
+	public int size(){
+		return configurations.size();
+	}
+
+	/**
+	 * Looks for all the boards among the markers given, see BoardDetector.detect.
+	 * @param detectedMarkers the markers detected in the frame.
+	 * @param cp the camera parameters for extrinsic parameters.
+	 * @param markerSizeMeters the size of each marker.
+	 * @throws CvException
+	 */
+	public void detect(Vector<Marker> detectedMarkers, CameraParameters cp, float markerSizeMeters) throws CvException{
+		if(boardOf == null)
+			buildIndex();
+		for(int b=0;b<boardMarkers.size();b++)
+			boardMarkers.get(b).clear();
+		for(int i=0;i<detectedMarkers.size();i++){
+			int b = boardOf.get(detectedMarkers.get(i).id);
+			if(b != -1)
+				boardMarkers.get(b).add(detectedMarkers.get(i));
+		}
+		if(cp.isValid())
+			cp.getIntrinsics(); // read them once before the threads use them
+		this.cp = cp;
+		this.markerSizeMeters = markerSizeMeters;
+		frameMarkers = detectedMarkers.size();
+		if(pool != null && configurations.size() > 1)
+			pool.run(tasks);
+		else
+			for(int b=0;b<configurations.size();b++)
+				detect(b);
+		this.cp = null;
+	}
+
+	/**
+	 * returns the i-th board as found in the last call to detect.
+	 */
+	public Board getBoard(int i){
+		return boards.get(i);
+	}
+
+	/**
+	 * returns the value returned by BoardDetector.detect for the i-th board in the
+	 * last call to detect.
+	 */
+	public float getProbability(int i){
+		return probabilities[i];
+	}
+
+	/**
+	 * returns the detector of the i-th board, to set its options.
+	 */
+	public BoardDetector getDetector(int i){
+		return detectors.get(i);
+	}
+
+	/**
+	 * Sets the number of threads used to calculate the poses of the boards.
+	 * @param nThreads 1, the default, does everything in the calling thread. 0 uses
+	 * one thread per available core.
+	 */
+	public void setThreads(int nThreads){
+		if(nThreads == 0)
+			nThreads = Runtime.getRuntime().availableProcessors();
+		if(pool != null){
+			if(pool.size() == nThreads)
+				return;
+			release();
+		}
+		if(nThreads > 1){
+			pool = new WorkerPool("MultiBoardDetector-worker", nThreads);
+			for(int i=0;i<nThreads;i++)
+				tasks.add(new BoardTask(i, nThreads));
+		}
+	}
+
+	public int getThreads(){
+		return pool == null? 1 : pool.size();
+	}
+
+	/**
+	 * Stops the threads, if any. The detector can still be used afterwards, in the
+	 * calling thread.
+	 */
+	public void release(){
+		if(pool != null){
+			pool.shutdown();
+			pool = null;
+			tasks.clear();
+		}
+	}
+
+	private void detect(int b){
+		probabilities[b] = detectors.get(b).detect(boardMarkers.get(b), configurations.get(b), boards.get(b),
+				cp, markerSizeMeters, frameMarkers);
+	}
+
+	private void buildIndex(){
+		int nIds = 0;
+		for(int i=0;i<configurations.size();i++)
+			nIds += configurations.get(i).width*configurations.get(i).height;
+		boardOf = new IdTable(nIds);
+		for(int i=0;i<configurations.size();i++){
+			BoardConfiguration conf = configurations.get(i);
+			for(int y=0;y<conf.height;y++)
+				for(int x=0;x<conf.width;x++){
+					int id = conf.markersId[y][x];
+					if(id >= 0 && boardOf.get(id) == -1)
+						boardOf.put(id, i);
+				}
+		}
+	}
+
+	private static boolean contains(BoardConfiguration conf, int id){
+		for(int y=0;y<conf.height;y++)
+			for(int x=0;x<conf.width;x++)
+				if(conf.markersId[y][x] == id)
+					return true;
+		return false;
+	}
+
+	private class BoardTask implements Callable<Void> {
+		private final int first, step;
+
+		BoardTask(int first, int step){
+			this.first = first;
+			this.step = step;
+		}
+
+		@Override
+		public Void call() {
+			for(int b=first;b<configurations.size();b+=step)
+				detect(b);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package es.ava.aruco;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+/**
+ * Keeps track of the markers between frames. The full detection of MarkerDetector
+ * is only run every few frames, in the frames in between the corners of the markers
+ * already identified are followed with pyramidal Lucas-Kanade optical flow, which is
+ * much cheaper. A full detection is run as well as soon as a marker is lost or the
+ * confidence of its corners drops below a threshold, and new markers only appear
+ * after a full detection.
+ * The markers keep their id while tracked and report how many consecutive frames
+ * they have been seen and how reliable their corners are.
+ */
+public class OpticalFlowTracker {
+	private MarkerDetector detector;
+	private int detectionInterval;
+	private float minConfidence;
+	private int framesSinceDetection;
+
+	private Vector<Marker> tracked;
+	// ids and ages of the markers before the last detection, sorted by id
+	private int[] prevIds, prevAges;
+	private int prevCount;
+
+	private Mat grey, prevGrey;
+	private MatOfPoint2f prevPts, nextPts;
+	private MatOfByte status;
+	private MatOfFloat err;
+	private float[] corners;
+	private byte[] statusBuff;
+	private float[] errBuff;
+	private Size flowWin;
+	private int flowLevels;
+	private TermCriteria flowCriteria;
+
+	private final static double MIN_DISTANCE = 10;
+	// how much the confidence decreases in each frame tracked
+	private final static float CONFIDENCE_DECAY = 0.95f;
+	// mean error of the optical flow for which the confidence of a marker becomes 0
+	private final static float MAX_FLOW_ERROR = 30f;
+
+	public OpticalFlowTracker(MarkerDetector detector){
+		this.detector = detector;
+		detectionInterval = 5;
+		minConfidence = 0.5f;
+		framesSinceDetection = 0;
+		tracked = new Vector<Marker>();
+		prevIds = new int[16];
+		prevAges = new int[16];
+		prevCount = 0;
+		grey = new Mat();
+		prevGrey = new Mat();
+		prevPts = new MatOfPoint2f();
+		nextPts = new MatOfPoint2f();
+		status = new MatOfByte();
+		err = new MatOfFloat();
+		corners = new float[8*16];
+		statusBuff = new byte[4*16];
+		errBuff = new float[4*16];
+		flowWin = new Size(21,21);
+		flowLevels = 3;
+		flowCriteria = new TermCriteria(TermCriteria.MAX_ITER | TermCriteria.EPS, 20, 0.03);
+	}
+
+	/**
+	 * Finds the markers in the frame given, by tracking the ones of the previous
+	 * frame or with a full detection.
+	 * @param in input Mat to find the markers in, as in MarkerDetector.detect: a RGBA frame
+	 * 		or directly a grey one (CV_8UC1), such as CvCameraViewFrame.gray().
+	 * @param detectedMarkers output vector with the markers found, sorted by id.
+	 * @param cp the camera parameters, the extrinsics are calculated if valid.
+	 * @param markerSizeMeters the size of the markers.
+	 * @return true if a full detection has been run in this frame.
+	 */
+	public boolean track(Mat in, Vector<Marker> detectedMarkers, CameraParameters cp, float markerSizeMeters){
+		boolean detect = tracked.isEmpty() || framesSinceDetection+1 >= detectionInterval;
+		if(!detect){
+			if(in.type() == CvType.CV_8UC1)
+				in.copyTo(grey);
+			else
+				Imgproc.cvtColor(in, grey, Imgproc.COLOR_RGBA2GRAY);
+			// a full detection is needed if any marker is lost
+			detect = !followCorners();
+		}
+		if(detect){
+			rememberAges();
+			detector.detect(in, tracked, cp, markerSizeMeters);
+			detector.getGrey().copyTo(grey);
+			for(int i=0;i<tracked.size();i++){
+				Marker marker = tracked.get(i);
+				marker.age = previousAge(marker.id) + 1;
+				marker.confidence = 1;
+			}
+			framesSinceDetection = 0;
+		}
+		else{
+			framesSinceDetection++;
+			detector.calculateExtrinsics(tracked, cp, markerSizeMeters);
+		}
+		// keep this frame to follow the corners in the next one
+		Mat aux = prevGrey;
+		prevGrey = grey;
+		grey = aux;
+
+		detectedMarkers.setSize(tracked.size());
+		for(int i=0;i<tracked.size();i++)
+			detectedMarkers.set(i, tracked.get(i));
+		return detect;
+	}
+
+	/**
+	 * Forgets the markers being tracked, the next frame will run a full detection.
+	 */
+	public void reset(){
+		tracked.clear();
+		framesSinceDetection = 0;
+	}
+
+	/**
+	 * Sets how often a full detection is run while the markers are tracked correctly.
+	 * @param frames 1 runs a full detection in every frame. 5 by default.
+	 */
+	public void setDetectionInterval(int frames){
+		detectionInterval = Math.max(1, frames);
+	}
+
+	public int getDetectionInterval(){
+		return detectionInterval;
+	}
+
+	/**
+	 * Sets the confidence under which a marker is considered lost and a full
+	 * detection is run.
+	 * @param confidence from 0 to 1, 0.5 by default.
+	 */
+	public void setMinConfidence(float confidence){
+		minConfidence = confidence;
+	}
+
+	public float getMinConfidence(){
+		return minConfidence;
+	}
+
+	/**
+	 * Set the parameters of the optical flow, see opencv doc of calcOpticalFlowPyrLK for more info
+	 * @param winSize size of the search window at each pyramid level. 21 by default.
+	 * @param maxLevel number of pyramid levels. 3 by default.
+	 */
+	public void setFlowParams(int winSize, int maxLevel){
+		flowWin.width = flowWin.height = winSize;
+		flowLevels = maxLevel;
+	}
+
+	/**
+	 * returns the detector used for the full detections.
+	 */
+	public MarkerDetector getDetector(){
+		return detector;
+	}
+
+	// moves the corners of the markers tracked to the current frame, false if any of them is lost
+	private boolean followCorners(){
+		int n = tracked.size();
+		if(corners.length < 8*n){
+			corners = new float[16*n];
+			statusBuff = new byte[8*n];
+			errBuff = new float[8*n];
+		}
+		for(int i=0;i<n;i++)
+			tracked.get(i).getCorners(corners, 8*i);
+		prevPts.create(4*n, 1, CvType.CV_32FC2);
+		prevPts.put(0, 0, corners);
+		Video.calcOpticalFlowPyrLK(prevGrey, grey, prevPts, nextPts, status, err, flowWin, flowLevels,
+				flowCriteria, 0, 1e-4);
+		nextPts.get(0, 0, corners);
+		status.get(0, 0, statusBuff);
+		err.get(0, 0, errBuff);
+
+		for(int i=0;i<n;i++){
+			float meanErr = 0;
+			for(int k=0;k<4;k++){
+				if(statusBuff[4*i+k] == 0)
+					return false;
+				meanErr += errBuff[4*i+k]/4;
+			}
+			if(!isValidQuad(corners, 8*i))
+				return false;
+			Marker marker = tracked.get(i);
+			float flowQuality = Math.max(0f, 1f - meanErr/MAX_FLOW_ERROR);
+			float confidence = marker.confidence * CONFIDENCE_DECAY * flowQuality;
+			if(confidence < minConfidence)
+				return false;
+			marker.confidence = confidence;
+		}
+		// all of them are still good, move them
+		for(int i=0;i<n;i++){
+			Marker marker = tracked.get(i);
+			marker.setCorners(corners, 8*i);
+			marker.age++;
+		}
+		return true;
+	}
+
+	// the quad must stay convex, anti-clockwise and with sides long enough to be a marker
+	private static boolean isValidQuad(float[] p, int offset){
+		for(int k=0;k<4;k++){
+			int a = offset+2*k, b = offset+2*((k+1)%4), c = offset+2*((k+2)%4);
+			double dx1 = p[b]-p[a], dy1 = p[b+1]-p[a+1];
+			double dx2 = p[c]-p[b], dy2 = p[c+1]-p[b+1];
+			if(dx1*dy2 - dy1*dx2 <= 0)
+				return false;
+			if(Math.sqrt(dx1*dx1+dy1*dy1) <= MIN_DISTANCE)
+				return false;
+		}
+		return true;
+	}
+
+	private void rememberAges(){
+		int n = tracked.size();
+		if(prevIds.length < n){
+			prevIds = new int[2*n];
+			prevAges = new int[2*n];
+		}
+		for(int i=0;i<n;i++){
+			prevIds[i] = tracked.get(i).id;
+			prevAges[i] = tracked.get(i).age;
+		}
+		prevCount = n;
+	}
+
+	private int previousAge(int id){
+		int pos = Arrays.binarySearch(prevIds, 0, prevCount, id);
+		return pos >= 0? prevAges[pos] : 0;
+	}
+}
@@ -0,0 +1,112 @@
+package es.ava.aruco;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint3f;
+
+/**
+ * Fixed pool of threads used by MarkerDetector to identify the candidates and
+ * calculate the extrinsics of the markers in parallel. Each thread takes the
+ * candidates whose index modulo the number of threads is its own index, so
+ * the work is split the same way every frame, and has its own scratch Mats.
+ */
+class ParallelVerifier {
+	private final MarkerDetector detector;
+	private final WorkerPool pool;
+	private final List<Callable<Void>> identifyTasks;
+	private final List<Callable<Void>> extrinsicsTasks;
+	
+	// the frame being verified, set before the tasks are run
+	private Mat frame;
+	private int nCandidates;
+	private int[] toRemove;
+	private Vector<Marker> markers;
+	private CameraParameters cp;
+	private MatOfPoint3f objPoints;
+	
+	ParallelVerifier(MarkerDetector detector, int nThreads){
+		this.detector = detector;
+		pool = new WorkerPool("MarkerDetector-verifier", nThreads);
+		identifyTasks = new ArrayList<Callable<Void>>(nThreads);
+		extrinsicsTasks = new ArrayList<Callable<Void>>(nThreads);
+		for(int i=0;i<nThreads;i++){
+			identifyTasks.add(new IdentifyTask(i, nThreads));
+			extrinsicsTasks.add(new ExtrinsicsTask(i, nThreads));
+		}
+	}
+	
+	int size(){
+		return pool.size();
+	}
+	
+	/**
+	 * Identifies the candidates not set to be removed yet, the ones that are not a
+	 * valid marker are set to be removed with the reason, see MarkerDetector.identify.
+	 */
+	void identify(Mat in, int nCandidates, int[] toRemove){
+		this.frame = in;
+		this.nCandidates = nCandidates;
+		this.toRemove = toRemove;
+		pool.run(identifyTasks);
+		this.frame = null;
+		this.toRemove = null;
+	}
+	
+	/**
+	 * Calculates the extrinsics of every marker given.
+	 */
+	void calculateExtrinsics(Vector<Marker> markers, CameraParameters cp, MatOfPoint3f objPoints){
+		this.markers = markers;
+		this.cp = cp;
+		this.objPoints = objPoints;
+		pool.run(extrinsicsTasks);
+		this.markers = null;
+		this.cp = null;
+		this.objPoints = null;
+	}
+	
+	void shutdown(){
+		pool.shutdown();
+	}
+	
+	private class IdentifyTask implements Callable<Void> {
+		private final int first, step;
+		private final MarkerDetector.VerifyScratch scratch;
+		
+		IdentifyTask(int first, int step){
+			this.first = first;
+			this.step = step;
+			scratch = new MarkerDetector.VerifyScratch();
+		}
+		
+		@Override
+		public Void call() {
+			for(int i=first;i<nCandidates;i+=step)
+				if(toRemove[i] == 0)
+					toRemove[i] = detector.identify(frame, i, scratch);
+			return null;
+		}
+	}
+	
+	private class ExtrinsicsTask implements Callable<Void> {
+		private final int first, step;
+		private final MarkerDetector.VerifyScratch scratch;
+		
+		ExtrinsicsTask(int first, int step){
+			this.first = first;
+			this.step = step;
+			scratch = new MarkerDetector.VerifyScratch();
+		}
+		
+		@Override
+		public Void call() {
+			for(int i=first;i<markers.size();i+=step)
+				detector.calculateExtrinsics(markers.get(i), cp, objPoints, scratch);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package es.ava.aruco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint3f;
+
+/**
+ * Keeps the pose of each marker id between frames to calculate the extrinsics of
+ * the markers seen again starting from their previous pose. solvePnP converges in
+ * a few iterations from such a guess, and if the corners have barely moved the
+ * previous pose is kept as it is, which also removes most of the jitter of a
+ * static marker. The pose of a marker not seen in the previous frame, or whose
+ * corners are in a different order, is calculated from scratch.
+ * The poses of different markers can be calculated at the same time from
+ * different threads once beginFrame has been called.
+ */
+public class PoseTracker {
+	private final static int INITIAL_CAPACITY = 64;
+	private final ArrayList<State> states;
+	private IdTable index; // the position in states of the state of each id
+	private int[] ids; // the id of each state, to build the index again when it is full
+	private long frame;
+	private double stillDistance;
+
+	public PoseTracker(){
+		states = new ArrayList<State>();
+		ids = new int[INITIAL_CAPACITY];
+		index = new IdTable(INITIAL_CAPACITY);
+		frame = 0;
+		stillDistance = 0.25;
+	}
+
+	/**
+	 * Starts a new frame. It must be called before calculating the extrinsics of
+	 * the markers of the frame, with all of them.
+	 * @param markers the markers whose pose is going to be calculated.
+	 */
+	public void beginFrame(Vector<Marker> markers){
+		frame++;
+		for(int i=0;i<markers.size();i++){
+			int id = markers.get(i).id;
+			if(index.get(id) == -1)
+				addState(id);
+		}
+	}
+
+	/**
+	 * Calculates the extrinsics of the marker given, see Marker.calculateExtrinsics.
+	 * @param marker its id must have been given to beginFrame in this frame.
+	 * @param cp the camera parameters.
+	 * @param objPoints the 4 corners of the marker in its own reference system.
+	 */
+	public void calculateExtrinsics(Marker marker, CameraParameters cp, MatOfPoint3f objPoints){
+		calculateExtrinsics(marker, cp, objPoints, null);
+	}
+	
+	/**
+	 * Same as above but with the closed form solver given instead of solvePnP.
+	 * @param solver the solver, null to use solvePnP.
+	 */
+	public void calculateExtrinsics(Marker marker, CameraParameters cp, MatOfPoint3f objPoints,
+			SquarePoseSolver solver){
+		State s = states.get(index.get(marker.id));
+		marker.getCorners(s.current, 0);
+		boolean closedForm = solver != null;
+		boolean tracked = s.lastFrame == frame-1 && s.rotations == marker.getRotations() &&
+				s.closedForm == closedForm;
+		if(tracked && maxDisplacement(s.corners, s.current) < stillDistance){
+			// the marker has not moved, the corners the pose was calculated from are kept
+			// so it does not drift when it moves very slowly
+			s.lastFrame = frame;
+			if(closedForm)
+				marker.setExtrinsics(solver, s.pose);
+			else
+				marker.setExtrinsics(s.rvec, s.tvec);
+			return;
+		}
+		if(closedForm){
+			if(!marker.calculateExtrinsics(solver, cp.getIntrinsics(), s.pose, tracked)){
+				s.lastFrame = -1;
+				return;
+			}
+		}
+		else{
+			Calib3d.solvePnP(objPoints, marker, cp.getCameraMatrix(), cp.getDistCoeff(), s.rvec, s.tvec, tracked,
+					Calib3d.ITERATIVE);
+			marker.setExtrinsics(s.rvec, s.tvec);
+		}
+		System.arraycopy(s.current, 0, s.corners, 0, 8);
+		s.rotations = marker.getRotations();
+		s.closedForm = closedForm;
+		s.lastFrame = frame;
+	}
+
+	/**
+	 * Sets the distance under which the corners of a marker are considered not to
+	 * have moved and its previous pose is kept.
+	 * @param pixels maximum displacement of any corner, 0.25 by default. 0 always
+	 * 		calculates the pose again.
+	 */
+	public void setStillDistance(double pixels){
+		stillDistance = pixels;
+	}
+
+	public double getStillDistance(){
+		return stillDistance;
+	}
+
+	/**
+	 * Forgets every pose, the next ones are calculated from scratch.
+	 */
+	public void reset(){
+		states.clear();
+		index = new IdTable(ids.length);
+	}
+
+	private void addState(int id){
+		int n = states.size();
+		if(n == ids.length){
+			// the index is full, it is built again with twice the room
+			ids = Arrays.copyOf(ids, 2*n);
+			index = new IdTable(ids.length);
+			for(int i=0;i<n;i++)
+				index.put(ids[i], i);
+		}
+		ids[n] = id;
+		index.put(id, n);
+		states.add(new State());
+	}
+
+	private static double maxDisplacement(float[] a, float[] b){
+		double max = 0;
+		for(int k=0;k<4;k++){
+			double dx = a[2*k]-b[2*k], dy = a[2*k+1]-b[2*k+1];
+			max = Math.max(max, dx*dx+dy*dy);
+		}
+		return Math.sqrt(max);
+	}
+
+	// the pose of a marker as given by solvePnP, before aligning it to the id
+	private static class State {
+		final Mat rvec = new Mat(3,1,CvType.CV_64FC1);
+		final Mat tvec = new Mat(3,1,CvType.CV_64FC1);
+		final float[] corners = new float[8]; // the corners the pose was calculated from
+		final float[] current = new float[8];
+		final double[] pose = new double[12]; // the same for SquarePoseSolver
+		boolean closedForm;
+		int rotations;
+		long lastFrame = -1;
+	}
+}
@@ -0,0 +1,159 @@
+package es.ava.aruco;
+
+/**
+ * Finds the markers of a board that agree on its pose, so a marker badly located
+ * or wrongly identified does not spoil it. Every marker gives a hypothesis of the
+ * pose of the board, calculated from its own 4 corners with SquarePoseSolver, and
+ * so does the pose of the previous frame if given. The hypothesis that reprojects
+ * the most markers within the threshold wins and those markers are the inliers.
+ * As there are only as many hypotheses as markers all of them are tried, up to
+ * MAX_HYPOTHESES, instead of sampling them randomly.
+ * The poses are the rotation matrix in row-major order followed by the translation.
+ */
+class RobustBoardPose {
+	private final static int MAX_HYPOTHESES = 32;
+
+	private final SquarePoseSolver solver;
+	private final double[] hypothesis, markerPose;
+	private final float[] corners;
+	private double threshold;
+	private int inlierCount; // inliers of the last hypothesis scored
+
+	RobustBoardPose(){
+		solver = new SquarePoseSolver();
+		hypothesis = new double[12];
+		markerPose = new double[12];
+		corners = new float[8];
+		threshold = 3;
+	}
+
+	/**
+	 * Selects the markers consistent with the best pose.
+	 * @param img the corners of the markers in the image, 8 floats per marker.
+	 * @param obj the corners of the markers in the board, 12 floats per marker.
+	 * @param n number of markers.
+	 * @param intrinsics the camera, see CameraParameters.getIntrinsics.
+	 * @param markerSize side of the markers.
+	 * @param previous pose of the board in the previous frame, null if unknown.
+	 * @param inliers receives for each marker whether it agrees with the best pose.
+	 * @param pose receives the best pose.
+	 * @return the number of inliers, 0 if no pose could be calculated.
+	 */
+	int select(float[] img, float[] obj, int n, double[] intrinsics, float markerSize,
+			double[] previous, boolean[] inliers, double[] pose){
+		int bestCount = 0;
+		double bestError = Double.MAX_VALUE;
+		if(previous != null){
+			System.arraycopy(previous, 0, hypothesis, 0, 12);
+			double error = score(hypothesis, img, obj, n, intrinsics);
+			bestCount = inlierCount;
+			bestError = error;
+			System.arraycopy(hypothesis, 0, pose, 0, 12);
+		}
+		int step = (n+MAX_HYPOTHESES-1)/MAX_HYPOTHESES;
+		for(int i=0;i<n;i+=step){
+			if(!markerHypothesis(i, img, obj, intrinsics, markerSize))
+				continue;
+			double error = score(hypothesis, img, obj, n, intrinsics);
+			if(inlierCount > bestCount || (inlierCount == bestCount && error < bestError)){
+				bestCount = inlierCount;
+				bestError = error;
+				System.arraycopy(hypothesis, 0, pose, 0, 12);
+			}
+		}
+		if(bestCount == 0)
+			return 0;
+		for(int j=0;j<n;j++)
+			inliers[j] = markerError(pose, img, obj, j, intrinsics) < threshold;
+		return bestCount;
+	}
+
+	/**
+	 * Sets the maximum mean distance in pixels between the corners of a marker and
+	 * their reprojection for the marker to be an inlier. 3 by default.
+	 */
+	void setThreshold(double pixels){
+		threshold = pixels;
+	}
+
+	double getThreshold(){
+		return threshold;
+	}
+
+	/**
+	 * Root mean square distance in pixels between the corners of the markers
+	 * selected and their reprojection with the pose given.
+	 */
+	static double reprojectionError(double[] pose, float[] img, float[] obj, int n, boolean[] selected,
+			double[] intrinsics){
+		double sum = 0;
+		int count = 0;
+		for(int j=0;j<n;j++){
+			if(selected != null && !selected[j])
+				continue;
+			for(int k=0;k<4;k++){
+				double d = cornerError(pose, img, obj, j, k, intrinsics);
+				sum += d*d;
+				count++;
+			}
+		}
+		return count == 0? 0 : Math.sqrt(sum/count);
+	}
+
+	// mean error of the inliers of the hypothesis, their number is left in inlierCount
+	private double score(double[] pose, float[] img, float[] obj, int n, double[] intrinsics){
+		double sum = 0;
+		inlierCount = 0;
+		for(int j=0;j<n;j++){
+			double error = markerError(pose, img, obj, j, intrinsics);
+			if(error < threshold){
+				inlierCount++;
+				sum += error;
+			}
+		}
+		return inlierCount == 0? Double.MAX_VALUE : sum/inlierCount;
+	}
+
+	// pose of the board given by the i-th marker alone, left in hypothesis
+	private boolean markerHypothesis(int i, float[] img, float[] obj, double[] intrinsics, float markerSize){
+		System.arraycopy(img, 8*i, corners, 0, 8);
+		if(!solver.solve(corners, intrinsics, markerSize, markerPose, false))
+			return false;
+		// the solver places the origin in the center of the marker: t_board = t - R*center
+		double cx = 0, cy = 0, cz = 0;
+		for(int k=0;k<4;k++){
+			cx += obj[12*i+3*k]/4;
+			cy += obj[12*i+3*k+1]/4;
+			cz += obj[12*i+3*k+2]/4;
+		}
+		System.arraycopy(markerPose, 0, hypothesis, 0, 9);
+		for(int r=0;r<3;r++)
+			hypothesis[9+r] = markerPose[9+r] - (markerPose[3*r]*cx + markerPose[3*r+1]*cy + markerPose[3*r+2]*cz);
+		return true;
+	}
+
+	private static double markerError(double[] pose, float[] img, float[] obj, int j, double[] intrinsics){
+		double sum = 0;
+		for(int k=0;k<4;k++)
+			sum += cornerError(pose, img, obj, j, k, intrinsics);
+		return sum/4;
+	}
+
+	// distance between the k-th corner of the j-th marker and its projection, with distortion
+	private static double cornerError(double[] pose, float[] img, float[] obj, int j, int k, double[] in){
+		double X = obj[12*j+3*k], Y = obj[12*j+3*k+1], Z = obj[12*j+3*k+2];
+		double px = pose[0]*X + pose[1]*Y + pose[2]*Z + pose[9];
+		double py = pose[3]*X + pose[4]*Y + pose[5]*Z + pose[10];
+		double pz = pose[6]*X + pose[7]*Y + pose[8]*Z + pose[11];
+		if(pz <= 0)
+			return Double.MAX_VALUE;
+		double x = px/pz, y = py/pz;
+		double r2 = x*x + y*y;
+		double radial = 1 + ((in[8]*r2 + in[5])*r2 + in[4])*r2;
+		double xd = x*radial + 2*in[6]*x*y + in[7]*(r2 + 2*x*x);
+		double yd = y*radial + in[6]*(r2 + 2*y*y) + 2*in[7]*x*y;
+		double dx = in[0]*xd + in[2] - img[8*j+2*k];
+		double dy = in[1]*yd + in[3] - img[8*j+2*k+1];
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+}
@@ -0,0 +1,310 @@
+package es.ava.aruco;
+
+/**
+ * Calculates the pose of a square marker from its 4 corners without OpenCV. The
+ * corners are undistorted, the homography from the square to them is obtained in
+ * closed form and decomposed into a rotation and a translation, which are then
+ * refined with a few Gauss-Newton iterations minimizing the reprojection error in
+ * pixels, as solvePnP does. Everything is done over double arrays, no Mat is used.
+ * The pose is the same given by solvePnP with the corners of the marker ordered as
+ * in MarkerDetector: (-s/2,-s/2), (-s/2,s/2), (s/2,s/2), (s/2,-s/2).
+ * A solver keeps its scratch buffers, so each thread needs its own.
+ */
+public class SquarePoseSolver {
+	private final static int MAX_ITERATIONS = 10;
+	private final static double EPSILON = 1e-10;
+	private final static int UNDISTORT_ITERATIONS = 10;
+
+	private final double[] xn = new double[8]; // undistorted normalized corners
+	private final double[] obj = new double[8];
+	private final double[] h = new double[9];
+	private final double[] jx = new double[6], jy = new double[6];
+	private final double[] jtj = new double[36];
+	private final double[] jtr = new double[6];
+	private final double[] delta = new double[6];
+	private final double[] rot = new double[9];
+	private final double[] prev = new double[12];
+	private final double[] aux = new double[9];
+
+	/**
+	 * Calculates the pose of a marker.
+	 * @param corners the 4 corners in pixels as [x1 y1 x2 y2 x3 y3 x4 y4].
+	 * @param intrinsics the camera as returned by CameraParameters.getIntrinsics.
+	 * @param size the side of the marker.
+	 * @param pose the rotation matrix in row-major order followed by the translation,
+	 * 		12 elements. It receives the pose and, if useGuess is true, must contain the
+	 * 		pose to start from.
+	 * @param useGuess true to refine the pose given instead of calculating it from scratch.
+	 * @return false if the corners are degenerate, pose is not modified then.
+	 */
+	public boolean solve(float[] corners, double[] intrinsics, double size, double[] pose, boolean useGuess){
+		double half = size/2;
+		for(int k=0;k<4;k++){
+			obj[2*k] = (k==2 || k==3)? half:-half;
+			obj[2*k+1] = (k==1 || k==2)? half:-half;
+		}
+		undistort(corners, intrinsics);
+		if(!useGuess && !fromHomography(half, pose))
+			return false;
+		refine(pose, intrinsics[0], intrinsics[1]);
+		return true;
+	}
+
+	/**
+	 * Rotates the pose given by solve around the Z axis of the marker according to
+	 * the rotation of its code, the same as Utils.alignToId, and converts it to the
+	 * rotation vector and translation of the marker.
+	 * @param pose the pose given by solve.
+	 * @param codeRotation the rotations of the marker.
+	 * @param rvec receives the rotation vector.
+	 * @param tvec receives the translation.
+	 */
+	public void align(double[] pose, int codeRotation, double[] rvec, double[] tvec){
+		// R * Rz((codeRotation+1)*90), the angle is a multiple of 90 so the product is exact
+		int quarter = (codeRotation+1) & 3;
+		int c = quarter==0? 1 : quarter==2? -1 : 0;
+		int s = quarter==1? 1 : quarter==3? -1 : 0;
+		double[] r = rot;
+		for(int i=0;i<3;i++){
+			r[3*i]   =  pose[3*i]*c + pose[3*i+1]*s;
+			r[3*i+1] = -pose[3*i]*s + pose[3*i+1]*c;
+			r[3*i+2] =  pose[3*i+2];
+		}
+		toRotationVector(r, rvec);
+		tvec[0] = pose[9];
+		tvec[1] = pose[10];
+		tvec[2] = pose[11];
+	}
+
+	// the corners in normalized camera coordinates, inverting the distortion as undistortPoints
+	private void undistort(float[] corners, double[] in){
+		double fx = in[0], fy = in[1], cx = in[2], cy = in[3];
+		double k1 = in[4], k2 = in[5], p1 = in[6], p2 = in[7], k3 = in[8];
+		for(int k=0;k<4;k++){
+			double x0 = (corners[2*k]-cx)/fx, y0 = (corners[2*k+1]-cy)/fy;
+			double x = x0, y = y0;
+			for(int it=0;it<UNDISTORT_ITERATIONS;it++){
+				double r2 = x*x + y*y;
+				double icdist = 1/(1 + ((k3*r2 + k2)*r2 + k1)*r2);
+				double dx = 2*p1*x*y + p2*(r2 + 2*x*x);
+				double dy = p1*(r2 + 2*y*y) + 2*p2*x*y;
+				x = (x0-dx)*icdist;
+				y = (y0-dy)*icdist;
+			}
+			xn[2*k] = x;
+			xn[2*k+1] = y;
+		}
+	}
+
+	// initial pose from the homography between the marker and the normalized corners
+	private boolean fromHomography(double half, double[] pose){
+		// homography from the unit square to the corners (Heckbert), the unit square corners
+		// (0,0) (1,0) (1,1) (0,1) are the corners 0, 3, 2 and 1 of the marker
+		double x0 = xn[0], y0 = xn[1], x1 = xn[6], y1 = xn[7];
+		double x2 = xn[4], y2 = xn[5], x3 = xn[2], y3 = xn[3];
+		double dx1 = x1-x2, dx2 = x3-x2, dx3 = x0-x1+x2-x3;
+		double dy1 = y1-y2, dy2 = y3-y2, dy3 = y0-y1+y2-y3;
+		double den = dx1*dy2 - dx2*dy1;
+		if(Math.abs(den) < EPSILON)
+			return false;
+		double g = (dx3*dy2 - dx2*dy3)/den;
+		double hh = (dx1*dy3 - dx3*dy1)/den;
+		double a = x1-x0+g*x1, b = x3-x0+hh*x3, c = x0;
+		double d = y1-y0+g*y1, e = y3-y0+hh*y3, f = y0;
+		// from the marker coordinates to the unit square: u = (X+half)/(2*half)
+		double sc = 1/(2*half);
+		h[0] = a*sc; h[1] = b*sc; h[2] = (a+b)/2 + c;
+		h[3] = d*sc; h[4] = e*sc; h[5] = (d+e)/2 + f;
+		h[6] = g*sc; h[7] = hh*sc; h[8] = (g+hh)/2 + 1;
+		// h = lambda*[r1 r2 t]
+		double n1 = Math.sqrt(h[0]*h[0] + h[3]*h[3] + h[6]*h[6]);
+		double n2 = Math.sqrt(h[1]*h[1] + h[4]*h[4] + h[7]*h[7]);
+		if(n1 < EPSILON || n2 < EPSILON)
+			return false;
+		double lambda = 2/(n1+n2);
+		if(h[8] < 0)
+			lambda = -lambda; // the marker must be in front of the camera
+		// make r1 and r2 orthonormal keeping them symmetric with respect to their bisector:
+		// their sum and difference are orthogonal, r1 and r2 are rebuilt from them normalized
+		double sign = lambda < 0? -1 : 1;
+		double np = 0, nq = 0;
+		for(int i=0;i<3;i++){
+			double r1 = sign*h[3*i]/n1, r2 = sign*h[3*i+1]/n2;
+			aux[i] = r1+r2;
+			aux[3+i] = r1-r2;
+			np += aux[i]*aux[i];
+			nq += aux[3+i]*aux[3+i];
+		}
+		np = Math.sqrt(np);
+		nq = Math.sqrt(nq);
+		if(np < EPSILON || nq < EPSILON)
+			return false;
+		for(int i=0;i<3;i++){
+			pose[3*i] = (aux[i]/np + aux[3+i]/nq)/Math.sqrt(2);
+			pose[3*i+1] = (aux[i]/np - aux[3+i]/nq)/Math.sqrt(2);
+		}
+		// r3 = r1 x r2
+		pose[2] = pose[3]*pose[7] - pose[6]*pose[4];
+		pose[5] = pose[6]*pose[1] - pose[0]*pose[7];
+		pose[8] = pose[0]*pose[4] - pose[3]*pose[1];
+		pose[9] = h[2]*lambda;
+		pose[10] = h[5]*lambda;
+		pose[11] = h[8]*lambda;
+		return true;
+	}
+
+	// Gauss-Newton over the reprojection error in pixels, the rotation updated as exp(w)*R
+	private void refine(double[] pose, double fx, double fy){
+		double cost = reprojectionError(pose, fx, fy);
+		for(int it=0;it<MAX_ITERATIONS;it++){
+			for(int i=0;i<36;i++)
+				jtj[i] = 0;
+			for(int i=0;i<6;i++)
+				jtr[i] = 0;
+			for(int k=0;k<4;k++){
+				double X = obj[2*k], Y = obj[2*k+1];
+				// q = R*X, P = q+t
+				double qx = pose[0]*X + pose[1]*Y, qy = pose[3]*X + pose[4]*Y, qz = pose[6]*X + pose[7]*Y;
+				double px = qx+pose[9], py = qy+pose[10], pz = qz+pose[11];
+				double iz = 1/pz;
+				double ex = fx*(px*iz - xn[2*k]), ey = fy*(py*iz - xn[2*k+1]);
+				// derivatives of P with respect to w are -[q]x, with respect to t the identity
+				double ax = fx*iz, az = -fx*px*iz*iz;
+				double by = fy*iz, bz = -fy*py*iz*iz;
+				jx[0] = az*qy;          jx[1] = ax*qz - az*qx; jx[2] = -ax*qy;
+				jx[3] = ax;             jx[4] = 0;             jx[5] = az;
+				jy[0] = -by*qz + bz*qy; jy[1] = -bz*qx;        jy[2] = by*qx;
+				jy[3] = 0;              jy[4] = by;            jy[5] = bz;
+				for(int i=0;i<6;i++){
+					jtr[i] += jx[i]*ex + jy[i]*ey;
+					for(int j=i;j<6;j++)
+						jtj[6*i+j] += jx[i]*jx[j] + jy[i]*jy[j];
+				}
+			}
+			for(int i=0;i<6;i++)
+				for(int j=0;j<i;j++)
+					jtj[6*i+j] = jtj[6*j+i];
+			for(int i=0;i<6;i++)
+				jtr[i] = -jtr[i];
+			if(!solve6(jtj, jtr, delta))
+				return;
+			System.arraycopy(pose, 0, prev, 0, 12);
+			toRotationMatrix(delta, aux);
+			for(int i=0;i<3;i++)
+				for(int j=0;j<3;j++)
+					rot[3*i+j] = aux[3*i]*prev[j] + aux[3*i+1]*prev[3+j] + aux[3*i+2]*prev[6+j];
+			System.arraycopy(rot, 0, pose, 0, 9);
+			pose[9] += delta[3];
+			pose[10] += delta[4];
+			pose[11] += delta[5];
+			double newCost = reprojectionError(pose, fx, fy);
+			if(newCost > cost){
+				System.arraycopy(prev, 0, pose, 0, 12);
+				return;
+			}
+			cost = newCost;
+			double step = 0;
+			for(int i=0;i<6;i++)
+				step += delta[i]*delta[i];
+			if(step < EPSILON*EPSILON)
+				return;
+		}
+	}
+
+	private double reprojectionError(double[] pose, double fx, double fy){
+		double sum = 0;
+		for(int k=0;k<4;k++){
+			double X = obj[2*k], Y = obj[2*k+1];
+			double px = pose[0]*X + pose[1]*Y + pose[9];
+			double py = pose[3]*X + pose[4]*Y + pose[10];
+			double pz = pose[6]*X + pose[7]*Y + pose[11];
+			double ex = fx*(px/pz - xn[2*k]), ey = fy*(py/pz - xn[2*k+1]);
+			sum += ex*ex + ey*ey;
+		}
+		return sum;
+	}
+
+	// solves the 6x6 system a*x = b by gaussian elimination with partial pivoting, a and b are modified
+	private static boolean solve6(double[] a, double[] b, double[] x){
+		for(int c=0;c<6;c++){
+			int pivot = c;
+			for(int r=c+1;r<6;r++)
+				if(Math.abs(a[6*r+c]) > Math.abs(a[6*pivot+c]))
+					pivot = r;
+			if(Math.abs(a[6*pivot+c]) < 1e-15)
+				return false;
+			if(pivot != c){
+				for(int k=0;k<6;k++){
+					double t = a[6*c+k]; a[6*c+k] = a[6*pivot+k]; a[6*pivot+k] = t;
+				}
+				double t = b[c]; b[c] = b[pivot]; b[pivot] = t;
+			}
+			for(int r=c+1;r<6;r++){
+				double f = a[6*r+c]/a[6*c+c];
+				for(int k=c;k<6;k++)
+					a[6*r+k] -= f*a[6*c+k];
+				b[r] -= f*b[c];
+			}
+		}
+		for(int r=5;r>=0;r--){
+			double s = b[r];
+			for(int k=r+1;k<6;k++)
+				s -= a[6*r+k]*x[k];
+			x[r] = s/a[6*r+r];
+		}
+		return true;
+	}
+
+	// Rodrigues: rotation vector (first 3 elements of w) to matrix
+	static void toRotationMatrix(double[] w, double[] r){
+		double theta = Math.sqrt(w[0]*w[0] + w[1]*w[1] + w[2]*w[2]);
+		if(theta < 1e-12){
+			r[0] = 1;     r[1] = -w[2]; r[2] = w[1];
+			r[3] = w[2];  r[4] = 1;     r[5] = -w[0];
+			r[6] = -w[1]; r[7] = w[0];  r[8] = 1;
+			return;
+		}
+		double kx = w[0]/theta, ky = w[1]/theta, kz = w[2]/theta;
+		double c = Math.cos(theta), s = Math.sin(theta), v = 1-c;
+		r[0] = c + kx*kx*v;    r[1] = kx*ky*v - kz*s; r[2] = kx*kz*v + ky*s;
+		r[3] = ky*kx*v + kz*s; r[4] = c + ky*ky*v;    r[5] = ky*kz*v - kx*s;
+		r[6] = kz*kx*v - ky*s; r[7] = kz*ky*v + kx*s; r[8] = c + kz*kz*v;
+	}
+
+	// Rodrigues: rotation matrix to vector
+	static void toRotationVector(double[] r, double[] w){
+		// the angle from its sine and cosine, acos alone loses precision near 0 and 180 degrees
+		double cos = (r[0] + r[4] + r[8] - 1)/2;
+		double sx = r[7]-r[5], sy = r[2]-r[6], sz = r[3]-r[1];
+		double theta = Math.atan2(Math.sqrt(sx*sx + sy*sy + sz*sz)/2, cos);
+		if(theta < 1e-8){
+			w[0] = sx/2; w[1] = sy/2; w[2] = sz/2;
+			return;
+		}
+		if(Math.PI - theta < 1e-4){
+			// near 180 degrees the axis is taken from the diagonal, r[ii] = cos + k[i]^2*(1-cos)
+			double kx = Math.sqrt(Math.max(0, (r[0]-cos)/(1-cos)));
+			double ky = Math.sqrt(Math.max(0, (r[4]-cos)/(1-cos)));
+			double kz = Math.sqrt(Math.max(0, (r[8]-cos)/(1-cos)));
+			if(kx >= ky && kx >= kz){
+				ky = Math.copySign(ky, r[1]);
+				kz = Math.copySign(kz, r[2]);
+			}
+			else if(ky >= kz){
+				kx = Math.copySign(kx, r[1]);
+				kz = Math.copySign(kz, r[5]);
+			}
+			else{
+				kx = Math.copySign(kx, r[2]);
+				ky = Math.copySign(ky, r[5]);
+			}
+			double n = Math.sqrt(kx*kx + ky*ky + kz*kz);
+			if(kx*sx + ky*sy + kz*sz < 0)
+				n = -n; // the antisymmetric part gives the direction of the axis
+			w[0] = kx/n*theta; w[1] = ky/n*theta; w[2] = kz/n*theta;
+			return;
+		}
+		double f = theta/(2*Math.sin(theta));
+		w[0] = sx*f; w[1] = sy*f; w[2] = sz*f;
+	}
+}
@@ -0,0 +1,181 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.opencv.core.CvException;
+
+/**
+ * A dictionary given by the table of its codes, of any size and from 2 to 8 bits
+ * per side. The 4 rotations of every code are kept in a table and in a hash, so a
+ * code read without errors is found with a single lookup and otherwise it is
+ * compared with all of them, counting the differing bits. A code is accepted only
+ * if the nearest one is unique, so with maxErrors up to getMaxCorrectableErrors
+ * another id is never returned.
+ * Tables with a given minimum distance can be made with generate.
+ */
+public class TableDictionary extends Dictionary {
+	private final int bits;
+	private final long[] codes;
+	// rotated[4*id+k] is the code of id as read after rotating the marker k times,
+	// the one that needs k more rotations to be read right
+	private final long[] rotated;
+	private final int minDistance;
+
+	// open addressing hash from the rotated codes to their index in rotated
+	private final long[] keys;
+	private final int[] values;
+	private final int mask;
+
+	/**
+	 * @param bits bits per side of the codes, without the border.
+	 * @param codes the code of each id, see Dictionary for the order of the bits.
+	 * @throws CvException if the size is not supported or a code is repeated in any
+	 * 		rotation, a code equal to one of its rotations included.
+	 */
+	public TableDictionary(int bits, long[] codes) throws CvException{
+		if(bits < 2 || bits > MAX_BITS)
+			throw new CvException("unsupported number of bits: "+bits);
+		if(codes.length == 0)
+			throw new CvException("empty dictionary");
+		this.bits = bits;
+		this.codes = codes.clone();
+		long valid = bits == 8? -1L : (1L<<(bits*bits))-1;
+		rotated = new long[4*codes.length];
+		for(int id=0;id<codes.length;id++){
+			if((codes[id] & ~valid) != 0)
+				throw new CvException("the code of the id "+id+" has more than "+bits*bits+" bits");
+			long code = codes[id];
+			// the code read after k rotations is the one rotated 4-k times
+			for(int k=0;k<4;k++){
+				rotated[4*id+(4-k)%4] = code;
+				code = rotate(code, bits);
+			}
+		}
+
+		int capacity = 16;
+		while(capacity < 2*rotated.length)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity-1;
+		for(int i=0;i<capacity;i++)
+			values[i] = -1;
+		for(int i=0;i<rotated.length;i++){
+			int slot = slot(rotated[i]);
+			if(values[slot] != -1)
+				throw new CvException("the code of the id "+i/4+" is repeated");
+			keys[slot] = rotated[i];
+			values[slot] = i;
+		}
+		minDistance = computeMinDistance();
+	}
+
+	@Override
+	public int getBits(){
+		return bits;
+	}
+
+	@Override
+	public int size(){
+		return codes.length;
+	}
+
+	@Override
+	public long getCode(int id){
+		return codes[id];
+	}
+
+	@Override
+	public int decode(long code, int maxErrors){
+		int slot = slot(code);
+		if(values[slot] != -1)
+			return values[slot];
+		if(maxErrors <= 0)
+			return -1;
+		int best = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		boolean tie = false;
+		for(int i=0;i<rotated.length;i++){
+			int d = Long.bitCount(rotated[i]^code);
+			if(d < bestDistance){
+				best = i;
+				bestDistance = d;
+				tie = false;
+			}
+			else if(d == bestDistance)
+				tie = true;
+		}
+		if(bestDistance > maxErrors || tie)
+			return -1;
+		return best;
+	}
+
+	@Override
+	public int getMinDistance(){
+		return minDistance;
+	}
+
+	/**
+	 * Generates a dictionary of random codes, each one far enough from the others
+	 * in all their rotations and from its own rotations.
+	 * @param bits bits per side of the codes.
+	 * @param size number of ids.
+	 * @param minDistance minimum hamming distance between codes, 3 corrects 1 wrong
+	 * 		bit and 5 corrects 2.
+	 * @param seed the same seed gives the same dictionary.
+	 * @throws CvException if not enough codes are found, the distance is too large
+	 * 		for the number of bits and ids.
+	 */
+	public static TableDictionary generate(int bits, int size, int minDistance, long seed) throws CvException{
+		if(bits < 2 || bits > MAX_BITS)
+			throw new CvException("unsupported number of bits: "+bits);
+		Random random = new Random(seed);
+		long valid = bits == 8? -1L : (1L<<(bits*bits))-1;
+		long[] codes = new long[size];
+		long[] accepted = new long[4*size]; // the rotations of the codes accepted
+		int n = 0;
+		int maxTries = 1000 + 1000*size;
+		for(int tries=0;n<size && tries<maxTries;tries++){
+			long code = random.nextLong() & valid;
+			long r1 = rotate(code, bits), r2 = rotate(r1, bits), r3 = rotate(r2, bits);
+			if(Long.bitCount(code^r1) < minDistance || Long.bitCount(code^r2) < minDistance ||
+					Long.bitCount(code^r3) < minDistance)
+				continue;
+			boolean far = true;
+			for(int i=0;i<4*n && far;i++)
+				far = Long.bitCount(code^accepted[i]) >= minDistance;
+			if(!far)
+				continue;
+			codes[n] = code;
+			accepted[4*n] = code;
+			accepted[4*n+1] = r1;
+			accepted[4*n+2] = r2;
+			accepted[4*n+3] = r3;
+			n++;
+		}
+		if(n < size)
+			throw new CvException("only "+n+" codes of "+bits+"x"+bits+" bits found with a distance of "+minDistance);
+		return new TableDictionary(bits, codes);
+	}
+
+	private int computeMinDistance(){
+		int min = bits*bits;
+		for(int id=0;id<codes.length;id++){
+			long code = codes[id];
+			for(int k=1;k<4;k++)
+				min = Math.min(min, Long.bitCount(code^rotated[4*id+k]));
+			// the rotations of the other codes, only the later ones as the distance is symmetric
+			for(int i=4*(id+1);i<rotated.length;i++)
+				min = Math.min(min, Long.bitCount(code^rotated[i]));
+		}
+		return min;
+	}
+
+	private int slot(long code){
+		long h = code*0x9E3779B97F4A7C15L;
+		int slot = (int)(h>>>32) & mask;
+		while(values[slot] != -1 && keys[slot] != code)
+			slot = (slot+1) & mask;
+		return slot;
+	}
+}
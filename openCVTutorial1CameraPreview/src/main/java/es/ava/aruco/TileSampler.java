@@ -0,0 +1,117 @@
+package es.ava.aruco;
+
+/**
+ * Reads the code of a candidate directly from the pixels of the grey frame instead
+ * of warping it to a canonical Mat. The homography from the grid of the marker,
+ * 7x7 for aruco, to the frame is calculated once and only a few points of each cell
+ * are sampled, with bilinear interpolation. The cells are classified with a single
+ * threshold calculated with Otsu's method over the cell values.
+ * It works on a copy of the frame in a java array, so no native call is done per
+ * candidate. Each thread verifying candidates needs its own sampler.
+ */
+class TileSampler {
+	// position of the samples inside each cell, away from its edges
+	private final static double[] OFFSETS = {0.3, 0.5, 0.7};
+	// minimum difference between the brightest and darkest cells to be a marker
+	private final static double MIN_CONTRAST = 10;
+	private final static int MAX_CELLS = (Dictionary.MAX_BITS+2)*(Dictionary.MAX_BITS+2);
+
+	private final double[] a = new double[72];
+	private final double[] h = new double[9];
+	private final double[] hInv = new double[9];
+	private final double[] cells = new double[MAX_CELLS];
+	private final double[] sorted = new double[MAX_CELLS];
+
+	/**
+	 * Samples the code of the quad given.
+	 * @param pixels the grey frame, row after row
+	 * @param cols width of the frame
+	 * @param rows height of the frame
+	 * @param corners the 4 corners of the candidate as [x1 y1 x2 y2 x3 y3 x4 y4]
+	 * @param code receives the code, 1 for white cells, with as many cells as it has
+	 * @return false if the quad is degenerate or has not enough contrast to be a marker
+	 */
+	boolean sample(byte[] pixels, int cols, int rows, float[] corners, Code code){
+		int n = code.getSize();
+		// frame to grid, with the corners of the marker in 0 and n, and its inverse
+		if(!Utils.perspectiveTransform(corners, n+1, n+1, a, h) || !invert(h, hInv))
+			return false;
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for(int y=0;y<n;y++)
+			for(int x=0;x<n;x++){
+				double sum = 0;
+				for(int i=0;i<OFFSETS.length;i++)
+					for(int j=0;j<OFFSETS.length;j++){
+						double u = x+OFFSETS[j], v = y+OFFSETS[i];
+						double w = hInv[6]*u + hInv[7]*v + hInv[8];
+						double px = (hInv[0]*u + hInv[1]*v + hInv[2])/w;
+						double py = (hInv[3]*u + hInv[4]*v + hInv[5])/w;
+						sum += bilinear(pixels, cols, rows, px, py);
+					}
+				double value = sum/(OFFSETS.length*OFFSETS.length);
+				cells[n*y+x] = value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+		if(max-min < MIN_CONTRAST)
+			return false;
+		double thres = otsu(n*n);
+		for(int y=0;y<n;y++)
+			for(int x=0;x<n;x++)
+				code.set(y, x, cells[n*y+x] > thres? 1:0);
+		return true;
+	}
+
+	// threshold that maximizes the variance between the dark and bright cells
+	private double otsu(int count){
+		System.arraycopy(cells, 0, sorted, 0, count);
+		java.util.Arrays.sort(sorted, 0, count);
+		double total = 0;
+		for(int i=0;i<count;i++)
+			total += sorted[i];
+		double best = -1, thres = sorted[0];
+		double sumDark = 0;
+		for(int k=1;k<count;k++){
+			sumDark += sorted[k-1];
+			double meanDark = sumDark/k;
+			double meanBright = (total-sumDark)/(count-k);
+			double between = (double)k*(count-k)*(meanBright-meanDark)*(meanBright-meanDark);
+			if(between > best){
+				best = between;
+				thres = (sorted[k-1]+sorted[k])/2;
+			}
+		}
+		return thres;
+	}
+
+	private static double bilinear(byte[] pixels, int cols, int rows, double x, double y){
+		x = Math.min(Math.max(x, 0), cols-1);
+		y = Math.min(Math.max(y, 0), rows-1);
+		int x0 = (int)x, y0 = (int)y;
+		int x1 = Math.min(x0+1, cols-1), y1 = Math.min(y0+1, rows-1);
+		double fx = x-x0, fy = y-y0;
+		double p00 = pixels[y0*cols+x0] & 0xff, p01 = pixels[y0*cols+x1] & 0xff;
+		double p10 = pixels[y1*cols+x0] & 0xff, p11 = pixels[y1*cols+x1] & 0xff;
+		return (p00*(1-fx) + p01*fx)*(1-fy) + (p10*(1-fx) + p11*fx)*fy;
+	}
+
+	// inverse of a 3x3 matrix in row-major order
+	private static boolean invert(double[] m, double[] inv){
+		double c0 = m[4]*m[8]-m[5]*m[7];
+		double c1 = m[5]*m[6]-m[3]*m[8];
+		double c2 = m[3]*m[7]-m[4]*m[6];
+		double det = m[0]*c0 + m[1]*c1 + m[2]*c2;
+		if(Math.abs(det) < 1e-12)
+			return false;
+		inv[0] = c0/det;
+		inv[1] = (m[2]*m[7]-m[1]*m[8])/det;
+		inv[2] = (m[1]*m[5]-m[2]*m[4])/det;
+		inv[3] = c1/det;
+		inv[4] = (m[0]*m[8]-m[2]*m[6])/det;
+		inv[5] = (m[2]*m[3]-m[0]*m[5])/det;
+		inv[6] = c2/det;
+		inv[7] = (m[1]*m[6]-m[0]*m[7])/det;
+		inv[8] = (m[0]*m[4]-m[1]*m[3])/det;
+		return true;
+	}
+}
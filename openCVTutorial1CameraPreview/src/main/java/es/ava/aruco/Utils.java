@@ -49,15 +49,87 @@ public abstract class Utils {
         }
 	}
 
+	/**
+	 * Computes the perspective transform that maps the 4 points given into the
+	 * corners of a width x height canonical image, the same result as
+	 * Imgproc.getPerspectiveTransform but without creating any Mat.
+	 * @param src the 4 points as [x1 y1 x2 y2 x3 y3 x4 y4]
+	 * @param width width of the canonical image
+	 * @param height height of the canonical image
+	 * @param a scratch buffer of at least 72 elements
+	 * @param h output 3x3 matrix in row-major order
+	 * @return false if the points are degenerate and no transform exists
+	 */
+	protected static boolean perspectiveTransform(float[] src, double width, double height,
+			double[] a, double[] h){
+		// destination corners in the same order used by warp
+		double w = width-1, hh = height-1;
+		for(int i=0;i<4;i++){
+			double x = src[2*i];
+			double y = src[2*i+1];
+			double u = (i==1 || i==2)? w:0;
+			double v = (i>=2)? hh:0;
+			int r = 18*i;
+			a[r]   = x; a[r+1] = y; a[r+2] = 1;
+			a[r+3] = 0; a[r+4] = 0; a[r+5] = 0;
+			a[r+6] = -u*x; a[r+7] = -u*y; a[r+8] = u;
+			r += 9;
+			a[r]   = 0; a[r+1] = 0; a[r+2] = 0;
+			a[r+3] = x; a[r+4] = y; a[r+5] = 1;
+			a[r+6] = -v*x; a[r+7] = -v*y; a[r+8] = v;
+		}
+		// gaussian elimination with partial pivoting on the 8x9 augmented matrix
+		for(int c=0;c<8;c++){
+			int pivot = c;
+			for(int r=c+1;r<8;r++)
+				if(Math.abs(a[9*r+c]) > Math.abs(a[9*pivot+c]))
+					pivot = r;
+			if(Math.abs(a[9*pivot+c]) < 1e-12)
+				return false;
+			if(pivot != c)
+				for(int k=c;k<9;k++){
+					double t = a[9*c+k];
+					a[9*c+k] = a[9*pivot+k];
+					a[9*pivot+k] = t;
+				}
+			for(int r=0;r<8;r++){
+				if(r == c)
+					continue;
+				double f = a[9*r+c]/a[9*c+c];
+				if(f == 0)
+					continue;
+				for(int k=c;k<9;k++)
+					a[9*r+k] -= f*a[9*c+k];
+			}
+		}
+		for(int i=0;i<8;i++)
+			h[i] = a[9*i+8]/a[9*i+i];
+		h[8] = 1;
+		return true;
+	}
+
 	//Fixing Axis Swapping that is described here:
 	// http://stackoverflow.com/questions/37953086/aruco-axis-swap-while-drawing-3daxis
-	protected static void alignToId(Mat rotation, int codeRotation) {
-		//get the matrix corresponding to the rotation vector
-		Mat R = new Mat(3, 3, CvType.CV_64FC1);
-		Calib3d.Rodrigues(rotation, R);
-
-		codeRotation += 1;
-		rotateZAxis(rotation, codeRotation * 90);
+	/**
+	 * Same as rotateZAxis(rotation, (codeRotation+1)*90) but in the scratch given, so
+	 * nothing is allocated, and exact because the angle is a multiple of 90.
+	 * @param matrix scratch 3x3 CV_64FC1 Mat for the rotation matrix.
+	 * @param buff scratch of 9 doubles.
+	 */
+	protected static void alignToId(Mat rotation, int codeRotation, Mat matrix, double[] buff) {
+		Calib3d.Rodrigues(rotation, matrix);
+		matrix.get(0, 0, buff);
+		// R * Rz((codeRotation+1)*90), as SquarePoseSolver.align
+		int quarter = (codeRotation+1) & 3;
+		int c = quarter==0? 1 : quarter==2? -1 : 0;
+		int s = quarter==1? 1 : quarter==3? -1 : 0;
+		for(int i=0;i<3;i++){
+			double a = buff[3*i], b = buff[3*i+1];
+			buff[3*i]   =  a*c + b*s;
+			buff[3*i+1] = -a*s + b*c;
+		}
+		matrix.put(0, 0, buff);
+		Calib3d.Rodrigues(matrix, rotation);
 	}
 
 	/**
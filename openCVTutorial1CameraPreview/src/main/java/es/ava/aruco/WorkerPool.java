@@ -0,0 +1,120 @@
+package es.ava.aruco;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.opencv.core.CvException;
+
+/**
+ * Fixed pool of daemon threads that runs a list of tasks and waits for all of them.
+ * An exception thrown by a task is thrown again in the calling thread, wrapped in a
+ * CvException if it is a checked one.
+ * The threads take the tasks from the list given under the lock of the pool, so
+ * running a list allocates nothing, unlike ExecutorService.invokeAll which creates
+ * a Future per task.
+ */
+class WorkerPool {
+	private final Thread[] threads;
+	// the tasks of the current run, null when idle, and the index of the next one to take
+	private List<? extends Callable<Void>> tasks;
+	private int next;
+	private int pending; // tasks of the current run not finished yet
+	private long run; // number of the current run, the tasks of an abandoned run are not counted
+	private Throwable failure; // the first exception thrown by a task of the current run
+	private boolean shutdown;
+
+	// the threads are named after the pool followed by their index
+	WorkerPool(String name, int nThreads){
+		threads = new Thread[nThreads];
+		for(int i=0;i<nThreads;i++){
+			threads[i] = new Thread(new Runnable(){
+				@Override
+				public void run() {
+					work();
+				}
+			}, name+"-"+i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+	}
+
+	int size(){
+		return threads.length;
+	}
+
+	void run(List<? extends Callable<Void>> tasks){
+		Throwable thrown;
+		synchronized(this){
+			this.tasks = tasks;
+			next = 0;
+			pending = tasks.size();
+			failure = null;
+			run++;
+			notifyAll();
+			try {
+				while(pending > 0)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CvException("interrupted while waiting for the workers");
+			} finally {
+				this.tasks = null;
+			}
+			thrown = failure;
+			failure = null;
+		}
+		if(thrown instanceof Error)
+			throw (Error)thrown;
+		if(thrown instanceof RuntimeException)
+			throw (RuntimeException)thrown;
+		if(thrown != null){
+			// checked exceptions are wrapped keeping their stack as the cause
+			CvException e = new CvException(thrown.toString());
+			e.initCause(thrown);
+			throw e;
+		}
+	}
+
+	void shutdown(){
+		synchronized(this){
+			shutdown = true;
+			notifyAll();
+		}
+		for(int i=0;i<threads.length;i++)
+			threads[i].interrupt();
+	}
+
+	// loop of each thread, it takes the tasks of each run until the pool is shut down
+	private void work(){
+		try {
+			while(true){
+				Callable<Void> task;
+				long taskRun;
+				synchronized(this){
+					while(!shutdown && (tasks == null || next == tasks.size()))
+						wait();
+					if(shutdown)
+						return;
+					task = tasks.get(next++);
+					taskRun = run;
+				}
+				Throwable thrown = null;
+				try {
+					task.call();
+				} catch (Throwable e) {
+					thrown = e;
+				}
+				synchronized(this){
+					if(taskRun == run){
+						if(thrown != null && failure == null)
+							failure = thrown;
+						if(--pending == 0)
+							notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// shut down
+		}
+	}
+}
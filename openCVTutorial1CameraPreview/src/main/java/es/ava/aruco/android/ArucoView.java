@@ -1,18 +1,13 @@
 package es.ava.aruco.android;
 
-import java.util.Date;
-
 import org.opencv.core.CvException;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
-import org.opencv.highgui.Highgui;
-import org.opencv.highgui.VideoCapture;
 import org.opencv.imgproc.Imgproc;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Environment;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -21,20 +16,24 @@ import android.view.SurfaceHolder;
 import android.view.View.OnTouchListener;
 import es.ava.aruco.BoardDetector;
 import es.ava.aruco.CameraParameters;
+import es.ava.aruco.DetectionMetrics;
 import es.ava.aruco.Marker;
 import es.ava.aruco.MarkerDetector;
 import es.ava.aruco.Utils;
+import es.ava.aruco.debug.HistogramSink;
 import es.ava.aruco.exceptions.CPException;
 import es.ava.aruco.exceptions.ExtParamException;
 
 public class ArucoView extends ViewBase implements OnTouchListener{
-	private Mat mFrame;
     private int mIdSelected;
     public CameraParameters mCamParam;
     protected float markerSizeMeters;
     protected Aruco3dActivity	mRenderer;
     protected MarkerDetector mDetector;
     protected BoardDetector mBDetector;
+    protected DetectionMetrics mMetrics;
+    protected HistogramSink mHistograms;
+    private static final int METRICS_LOG_INTERVAL = 100; // frames between each log of the timings
     
     // things needed to interaction with object by touching the screen
     private final float TOUCH_SCALE_FACTOR = 180.0f / 320;
@@ -55,6 +54,11 @@ public class ArucoView extends ViewBase implements OnTouchListener{
         mCamParam.readFromFile(Environment.getExternalStorageDirectory().toString() + "/camCalib/camCalibData.csv");
         mDetector = new MarkerDetector();
         mBDetector = new BoardDetector();
+        mHistograms = new HistogramSink(METRICS_LOG_INTERVAL);
+        mMetrics = new DetectionMetrics();
+        mMetrics.setSink(mHistograms);
+        mDetector.setMetrics(mMetrics);
+        mBDetector.setMetrics(mMetrics);
         mRenderer = renderer;
         markerSizeMeters = markerSize;
         mShowFps = showFps;
@@ -67,9 +71,6 @@ public class ArucoView extends ViewBase implements OnTouchListener{
         super.surfaceChanged(_holder, format, width, height);
 
         synchronized (this) {
-            // initialize Mats before usage TODO proper type
-        	mFrame = new Mat();
-        	
     		double[] proj_matrix = new double[16];
     		try {
     			Utils.myProjectionMatrix(mCamParam, new Size(width,height), proj_matrix, 0.05, 10);
@@ -86,12 +87,10 @@ public class ArucoView extends ViewBase implements OnTouchListener{
     }
     
     @Override
-    protected Bitmap processFrame(VideoCapture capture, SurfaceHolder holder, int width, int height) {
-        capture.retrieve(mFrame, Highgui.CV_CAP_ANDROID_COLOR_FRAME_RGBA);
-
-		mDetector.detect(mFrame, mDetectedMarkers, mCamParam, markerSizeMeters);
+    protected void processFrame(Mat frame) {
+		mDetector.detect(frame, mDetectedMarkers, mCamParam, markerSizeMeters);
 		
-		mRenderer.onDetection(mFrame, mDetectedMarkers, mIdSelected);
+		mRenderer.onDetection(frame, mDetectedMarkers, mIdSelected);
 		
 		// the onTouch method may have set this to false. Now it is set again to true to continue rendering
 		mRenderer.renderContinuously(true);
@@ -99,37 +98,17 @@ public class ArucoView extends ViewBase implements OnTouchListener{
 		if(mRenderer.mLookForBoard == true){
 			float prob=0f;
 			try {
-				Date initial = new Date();
 				prob = mBDetector.detect(mDetectedMarkers, mRenderer.mBC, mBoardDetected, mCamParam, markerSizeMeters);
-				Log.d(VIEW_LOG_TAG, "boarddetection took: " + ((new Date()).getTime() - initial.getTime()));
 			} catch (CvException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-			mRenderer.onBoardDetection(mFrame, mBoardDetected, prob);
+			mRenderer.onBoardDetection(frame, mBoardDetected, prob);
 		}
-        Bitmap bmp = Bitmap.createBitmap(mFrame.cols(), mFrame.rows(), Bitmap.Config.ARGB_8888);
-
-        try{
-        	org.opencv.android.Utils.matToBitmap(mFrame,bmp);
-            return bmp;
-        }
-        catch(IllegalArgumentException e){
-            bmp.recycle();
-            return null;
-        }
-    }
-
-    @Override
-    public void run() {
-        super.run();
-
-        synchronized (this) {
-            // Explicitly deallocate Mats
-        	if(mFrame != null)
-        		mFrame.release();
-        	mFrame = null;
-        }
+		mMetrics.endFrame();
+		if(mMetrics.getFrame() % METRICS_LOG_INTERVAL == 0)
+			Log.d(VIEW_LOG_TAG, "detection ms (median/95%): " + mHistograms + ", capture: " + getCaptureLatency() +
+					", shown after: " + getFrameLatency() + ", dropped: " + getDroppedFrames());
     }
 
 	@Override
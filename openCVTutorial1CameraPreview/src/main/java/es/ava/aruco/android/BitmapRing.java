@@ -0,0 +1,55 @@
+package es.ava.aruco.android;
+
+import android.graphics.Bitmap;
+
+/**
+ * Bitmaps reused in turns to show the frames, so once the size of the frames is
+ * known no more bitmaps are created. A bitmap is only created again when the size
+ * of the frames changes. With more than one bitmap the one just drawn is not
+ * overwritten by the next frame.
+ */
+class BitmapRing {
+	private final Bitmap[] bitmaps;
+	private int next;
+	private volatile long allocations; // read from other threads
+
+	BitmapRing(int size){
+		bitmaps = new Bitmap[size];
+		next = 0;
+		allocations = 0;
+	}
+
+	/**
+	 * returns the next bitmap, of the size given.
+	 */
+	Bitmap obtain(int width, int height){
+		Bitmap bmp = bitmaps[next];
+		if(bmp == null || bmp.getWidth() != width || bmp.getHeight() != height){
+			if(bmp != null)
+				bmp.recycle();
+			bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			bitmaps[next] = bmp;
+			allocations++;
+		}
+		next = (next+1) % bitmaps.length;
+		return bmp;
+	}
+
+	/**
+	 * returns the number of bitmaps created so far.
+	 */
+	long getAllocations(){
+		return allocations;
+	}
+
+	/**
+	 * Frees the memory of the bitmaps.
+	 */
+	void release(){
+		for(int i=0;i<bitmaps.length;i++){
+			if(bitmaps[i] != null)
+				bitmaps[i].recycle();
+			bitmaps[i] = null;
+		}
+	}
+}
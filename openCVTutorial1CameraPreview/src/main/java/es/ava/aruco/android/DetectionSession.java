@@ -0,0 +1,158 @@
+package es.ava.aruco.android;
+
+import java.util.Vector;
+
+import org.opencv.android.CachedCameraViewFrame;
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import android.util.Log;
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.GreyPyramid;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.exceptions.CPException;
+
+/**
+ * Everything needed to detect markers in the frames of a camera view, set up once
+ * when the view starts instead of for every frame. The detector, the camera
+ * parameters, read from the calibration file and resized to the frames, and the
+ * list of markers detected are kept from start to stop, so a CvCameraViewListener2
+ * only has to call start from onCameraViewStarted, detect from onCameraFrame and
+ * stop from onCameraViewStopped.
+ */
+public class DetectionSession {
+	private static final String TAG = "DetectionSession";
+
+	private final String calibrationFile;
+	private final Size calibrationSize;
+	private final float markerSizeMeters;
+	private final MarkerDetector detector;
+	private final CameraParameters cp;
+	private final Vector<Marker> markers;
+	private final FramePyramid framePyramid;
+	private boolean started;
+	// threads the detector verified with when stopped, started again by start
+	private int verificationThreads;
+
+	/**
+	 * @param calibrationFile the camera parameters, as read by CameraParameters.readFromFile.
+	 * @param calibrationSize size of the images the camera was calibrated with, null
+	 * 		if it is the size of the frames of the view.
+	 * @param markerSizeMeters the size of the markers.
+	 */
+	public DetectionSession(String calibrationFile, Size calibrationSize, float markerSizeMeters){
+		this.calibrationFile = calibrationFile;
+		this.calibrationSize = calibrationSize;
+		this.markerSizeMeters = markerSizeMeters;
+		detector = new MarkerDetector();
+		cp = new CameraParameters();
+		markers = new Vector<Marker>();
+		framePyramid = new FramePyramid();
+		started = false;
+		verificationThreads = 1;
+	}
+
+	/**
+	 * Reads the camera parameters and adapts them to the size of the frames. The
+	 * pose of the markers is only calculated if they are valid. The threads of the
+	 * detector stopped by stop are started again.
+	 * @param width width of the frames, as given to onCameraViewStarted.
+	 * @param height height of the frames.
+	 */
+	public synchronized void start(int width, int height){
+		cp.readFromFile(calibrationFile);
+		if(cp.isValid()){
+			cp.setCamSize(calibrationSize);
+			try {
+				cp.resize(new Size(width, height));
+			} catch (CPException e) {
+				Log.e(TAG, e.getMessage());
+			}
+		}
+		else
+			Log.e(TAG, "invalid camera parameters in " + calibrationFile);
+		if(verificationThreads > 1)
+			detector.setVerificationThreads(verificationThreads);
+		markers.clear();
+		started = true;
+	}
+
+	/**
+	 * Detects the markers in a frame. The reduced images of the frames of the camera
+	 * views, which cache them, are shared with whoever else uses them.
+	 * @return the markers detected, the same list every frame.
+	 */
+	public synchronized Vector<Marker> detect(CvCameraViewFrame frame){
+		if(frame instanceof CachedCameraViewFrame){
+			framePyramid.frame = (CachedCameraViewFrame)frame;
+			detect(frame.gray(), framePyramid);
+			framePyramid.frame = null;
+			return markers;
+		}
+		return detect(frame.gray(), null);
+	}
+
+	/**
+	 * Same as above with the frame already in grey.
+	 */
+	public synchronized Vector<Marker> detect(Mat grey){
+		return detect(grey, null);
+	}
+
+	private Vector<Marker> detect(Mat grey, GreyPyramid pyramid){
+		if(!started)
+			markers.clear();
+		else
+			detector.detect(grey, pyramid, markers, cp, markerSizeMeters);
+		return markers;
+	}
+
+	/**
+	 * Stops the threads of the detector, if any. The session can be started again,
+	 * with the same number of threads.
+	 */
+	public synchronized void stop(){
+		if(started)
+			verificationThreads = detector.getVerificationThreads();
+		detector.release();
+		markers.clear();
+		started = false;
+	}
+
+	public synchronized boolean isStarted(){
+		return started;
+	}
+
+	/**
+	 * returns the detector, to set its options.
+	 */
+	public MarkerDetector getDetector(){
+		return detector;
+	}
+
+	/**
+	 * returns the camera parameters, adapted to the frames once started.
+	 */
+	public CameraParameters getCameraParameters(){
+		return cp;
+	}
+
+	/**
+	 * returns the markers detected in the last frame.
+	 */
+	public Vector<Marker> getMarkers(){
+		return markers;
+	}
+
+	// the pyramid of the frame being detected, reused every frame
+	private static class FramePyramid implements GreyPyramid {
+		CachedCameraViewFrame frame;
+
+		@Override
+		public Mat level(int level){
+			return frame.grayPyramid(level);
+		}
+	}
+}
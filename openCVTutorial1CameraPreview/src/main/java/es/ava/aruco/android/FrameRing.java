@@ -0,0 +1,128 @@
+package es.ava.aruco.android;
+
+import java.util.ArrayDeque;
+
+import org.opencv.core.Mat;
+
+/**
+ * Preallocated frames passed between the stages of a pipeline. Each stage takes the
+ * newest frame of its queue, skipping the older ones, and puts it in the queue of
+ * the next stage once processed. The queues are bounded, when one is full the
+ * oldest frame is dropped, so a slow stage never stalls the previous one and there
+ * are always enough frames: one in use by each stage plus the capacity of the queues.
+ * The lock is only held to move frames, never while they are processed.
+ */
+class FrameRing {
+	/**
+	 * A frame and the time it was captured.
+	 */
+	static class Frame {
+		final Mat mat = new Mat();
+		long capturedNanos;
+	}
+
+	private final ArrayDeque<Frame> free;
+	private final ArrayDeque<Frame>[] queues;
+	private final int queueCapacity;
+	private final long[] dropped;
+	private final Frame[] all;
+	private boolean closed;
+
+	/**
+	 * @param nQueues number of queues, one less than the stages.
+	 * @param queueCapacity maximum number of frames waiting in each queue.
+	 */
+	@SuppressWarnings("unchecked")
+	FrameRing(int nQueues, int queueCapacity){
+		this.queueCapacity = queueCapacity;
+		queues = new ArrayDeque[nQueues];
+		for(int q=0;q<nQueues;q++)
+			queues[q] = new ArrayDeque<Frame>(queueCapacity);
+		dropped = new long[nQueues];
+		all = new Frame[(nQueues+1) + nQueues*queueCapacity];
+		free = new ArrayDeque<Frame>(all.length);
+		for(int i=0;i<all.length;i++){
+			all[i] = new Frame();
+			free.add(all[i]);
+		}
+		closed = false;
+	}
+
+	/**
+	 * returns a frame for the first stage to fill, there is always one.
+	 */
+	synchronized Frame obtain(){
+		return free.poll();
+	}
+
+	/**
+	 * Puts a frame processed by a stage in the queue of the next one, dropping the
+	 * oldest frame of the queue if it is full.
+	 */
+	synchronized void put(int queue, Frame frame){
+		ArrayDeque<Frame> q = queues[queue];
+		if(closed){
+			free.add(frame);
+			return;
+		}
+		if(q.size() == queueCapacity){
+			free.add(q.poll());
+			dropped[queue]++;
+		}
+		q.add(frame);
+		notifyAll();
+	}
+
+	/**
+	 * Waits for a frame in the queue given and returns the newest one, the older
+	 * ones are dropped.
+	 * @return the frame, null if the ring has been closed.
+	 */
+	synchronized Frame takeLatest(int queue) throws InterruptedException{
+		ArrayDeque<Frame> q = queues[queue];
+		while(q.isEmpty() && !closed)
+			wait();
+		if(closed)
+			return null;
+		while(q.size() > 1){
+			free.add(q.poll());
+			dropped[queue]++;
+		}
+		return q.poll();
+	}
+
+	/**
+	 * Gives back a frame no longer needed.
+	 */
+	synchronized void recycle(Frame frame){
+		free.add(frame);
+	}
+
+	/**
+	 * returns the number of frames dropped from the queue given without being
+	 * processed by the next stage.
+	 */
+	synchronized long getDropped(int queue){
+		return dropped[queue];
+	}
+
+	/**
+	 * Wakes up the stages waiting for a frame, from now on there are none.
+	 */
+	synchronized void close(){
+		closed = true;
+		for(int q=0;q<queues.length;q++){
+			free.addAll(queues[q]);
+			queues[q].clear();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Releases the memory of the frames. No stage can be using them.
+	 */
+	synchronized void release(){
+		for(int i=0;i<all.length;i++)
+			all[i].mat.release();
+	}
+}
@@ -0,0 +1,35 @@
+package es.ava.aruco.android;
+
+/**
+ * Count, mean and maximum of the durations of a stage of the pipeline, see ViewBase.
+ */
+public class LatencyCounter {
+	private long count, sum, max;
+
+	synchronized void add(long nanos){
+		count++;
+		sum += nanos;
+		max = Math.max(max, nanos);
+	}
+
+	public synchronized long getCount(){
+		return count;
+	}
+
+	public synchronized double getMeanMillis(){
+		return count == 0? 0 : sum/1e6/count;
+	}
+
+	public synchronized double getMaxMillis(){
+		return max/1e6;
+	}
+
+	public synchronized void reset(){
+		count = sum = max = 0;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("%d frames, mean %.1f ms, max %.1f ms", count, getMeanMillis(), getMaxMillis());
+	}
+}
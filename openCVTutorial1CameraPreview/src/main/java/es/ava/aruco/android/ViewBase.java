@@ -3,6 +3,7 @@ package es.ava.aruco.android;
 import java.util.List;
 import java.util.Vector;
 
+import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
 import org.opencv.highgui.VideoCapture;
@@ -29,6 +30,15 @@ public abstract class ViewBase extends SurfaceView implements SurfaceHolder.Call
     
     private FpsMeter            mFps;
 	public boolean mShowFps;
+
+    // the capture, detection and presentation stages run in their own threads, each
+    // one takes the newest frame of its queue, see FrameRing
+    private static final int DETECTION_QUEUE = 0, PRESENTATION_QUEUE = 1;
+    private static final int QUEUE_CAPACITY = 1;
+    private static final int BITMAPS = 2; // bitmaps the presentation stage draws in turns
+    private volatile FrameRing  mRing;
+    private volatile BitmapRing mBitmaps;
+    private final LatencyCounter mCaptureLatency, mDetectionLatency, mPresentationLatency, mFrameLatency;
     
     public ViewBase(Context context) {
         super(context);
@@ -37,6 +47,10 @@ public abstract class ViewBase extends SurfaceView implements SurfaceHolder.Call
         mFps = new FpsMeter();
         mDetectedMarkers = new Vector<Marker>();
         mBoardDetected = new Board();
+        mCaptureLatency = new LatencyCounter();
+        mDetectionLatency = new LatencyCounter();
+        mPresentationLatency = new LatencyCounter();
+        mFrameLatency = new LatencyCounter();
         Log.i(TAG, "Instantiated new " + this.getClass());
     }
 
@@ -99,7 +113,7 @@ public abstract class ViewBase extends SurfaceView implements SurfaceHolder.Call
     
     public void surfaceCreated(SurfaceHolder holder) {
         Log.i(TAG, "surfaceCreated");
-        (new Thread(this)).start();
+        (new Thread(this, "ViewBase-capture")).start();
     }
     
     public void surfaceDestroyed(SurfaceHolder holder) {
@@ -141,7 +155,7 @@ public abstract class ViewBase extends SurfaceView implements SurfaceHolder.Call
 //        Log.i(TAG, "surfaceCreated");
 //        mCamera = new VideoCapture(Highgui.CV_CAP_ANDROID);
 //        if (mCamera.isOpened()) {
-//            (new Thread(this)).start();
+//            (new Thread(this, "ViewBase-capture")).start();
 //        } else {
 //            mCamera.release();
 //            mCamera = null;
@@ -159,41 +173,174 @@ public abstract class ViewBase extends SurfaceView implements SurfaceHolder.Call
 //        }
 //    }
 
-    protected abstract Bitmap processFrame(VideoCapture capture, SurfaceHolder holder, int width, int height);
+    /**
+     * Detects the markers of a frame and draws on it whatever has to be shown. It is
+     * called from the detection thread with the newest frame captured, the ones
+     * captured meanwhile are skipped.
+     * @param rgba the frame, it is shown once this returns.
+     */
+    protected abstract void processFrame(Mat rgba);
+
+    /**
+     * returns the time to grab and retrieve each frame.
+     */
+    public LatencyCounter getCaptureLatency() {
+        return mCaptureLatency;
+    }
+
+    /**
+     * returns the time spent in processFrame.
+     */
+    public LatencyCounter getDetectionLatency() {
+        return mDetectionLatency;
+    }
+
+    /**
+     * returns the time to convert and draw each frame on the surface.
+     */
+    public LatencyCounter getPresentationLatency() {
+        return mPresentationLatency;
+    }
+
+    /**
+     * returns the time from the capture of each frame shown until it is on the surface.
+     */
+    public LatencyCounter getFrameLatency() {
+        return mFrameLatency;
+    }
 
+    /**
+     * returns the number of frames captured but never shown because a newer one
+     * was ready first.
+     */
+    public long getDroppedFrames() {
+        FrameRing ring = mRing;
+        return ring == null? 0 : ring.getDropped(DETECTION_QUEUE) + ring.getDropped(PRESENTATION_QUEUE);
+    }
+
+    /**
+     * returns the number of bitmaps created to show the frames, it does not grow
+     * once the size of the frames is known.
+     */
+    public long getBitmapAllocations() {
+        BitmapRing bitmaps = mBitmaps;
+        return bitmaps == null? 0 : bitmaps.getAllocations();
+    }
+
+    /**
+     * The capture stage: it only holds the camera while grabbing and retrieving the
+     * frame, the detection and presentation threads are started and stopped here.
+     */
     public void run() {
-        Log.i(TAG, "Starting processing thread");
+        Log.i(TAG, "Starting capture thread");
         mFps.init();
-        
+        FrameRing ring = new FrameRing(2, QUEUE_CAPACITY);
+        mRing = ring;
+        Thread detection = new Thread(new DetectionStage(ring), "ViewBase-detection");
+        Thread presentation = new Thread(new PresentationStage(ring), "ViewBase-presentation");
+        detection.start();
+        presentation.start();
+
         while (true) {
-            Bitmap bmp = null;
+            FrameRing.Frame frame = ring.obtain();
+            long start = System.nanoTime();
+            boolean grabbed = false;
 
             synchronized (this) {
-                if (mCamera == null)
-                    break;
-
-                if (!mCamera.grab()) {
-                    Log.e(TAG, "mCamera.grab() failed");
-                    break;
+                if (mCamera != null) {
+                    grabbed = mCamera.grab();
+                    if (grabbed)
+                        mCamera.retrieve(frame.mat, Highgui.CV_CAP_ANDROID_COLOR_FRAME_RGBA);
+                    else
+                        Log.e(TAG, "mCamera.grab() failed");
                 }
+            }
+            if (!grabbed) {
+                ring.recycle(frame);
+                break;
+            }
+            frame.capturedNanos = System.nanoTime();
+            mCaptureLatency.add(frame.capturedNanos - start);
+            ring.put(DETECTION_QUEUE, frame);
+        }
+
+        ring.close();
+        try {
+            detection.join();
+            presentation.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ring.release();
+        Log.i(TAG, "Finishing capture thread");
+    }
 
-                bmp = processFrame(mCamera, mHolder, mFrameWidth, mFrameHeight);
-                mFps.measure();
+    private class DetectionStage implements Runnable {
+        private final FrameRing ring;
+
+        DetectionStage(FrameRing ring) {
+            this.ring = ring;
+        }
+
+        public void run() {
+            try {
+                FrameRing.Frame frame;
+                while ((frame = ring.takeLatest(DETECTION_QUEUE)) != null) {
+                    long start = System.nanoTime();
+                    processFrame(frame.mat);
+                    mDetectionLatency.add(System.nanoTime() - start);
+                    ring.put(PRESENTATION_QUEUE, frame);
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Detection thread interrupted");
             }
+        }
+    }
+
+    private class PresentationStage implements Runnable {
+        private final FrameRing ring;
+        private final BitmapRing bitmaps;
+
+        PresentationStage(FrameRing ring) {
+            this.ring = ring;
+            bitmaps = new BitmapRing(BITMAPS);
+            mBitmaps = bitmaps;
+        }
 
-            if (bmp != null) {
-                Canvas canvas = mHolder.lockCanvas();
-                if (canvas != null) {
-                	// drawBitmap
-                	canvas.drawBitmap(bmp, (canvas.getWidth() - bmp.getWidth()) / 2, (canvas.getHeight() - bmp.getHeight()) / 2, null);
-                	if(mShowFps)
-                		mFps.draw(canvas, (canvas.getWidth() - bmp.getWidth()) / 2, 0);
-                    mHolder.unlockCanvasAndPost(canvas);
+        public void run() {
+            try {
+                FrameRing.Frame frame;
+                while ((frame = ring.takeLatest(PRESENTATION_QUEUE)) != null) {
+                    long start = System.nanoTime();
+                    draw(frame.mat);
+                    long end = System.nanoTime();
+                    mPresentationLatency.add(end - start);
+                    mFrameLatency.add(end - frame.capturedNanos);
+                    ring.recycle(frame);
                 }
-                bmp.recycle();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Presentation thread interrupted");
+            } finally {
+                bitmaps.release();
             }
         }
 
-        Log.i(TAG, "Finishing processing thread");
+        private void draw(Mat rgba) {
+            Bitmap bmp = bitmaps.obtain(rgba.cols(), rgba.rows());
+            try {
+                org.opencv.android.Utils.matToBitmap(rgba, bmp);
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+            mFps.measure();
+            Canvas canvas = mHolder.lockCanvas();
+            if (canvas != null) {
+            	// drawBitmap
+            	canvas.drawBitmap(bmp, (canvas.getWidth() - bmp.getWidth()) / 2, (canvas.getHeight() - bmp.getHeight()) / 2, null);
+            	if(mShowFps)
+            		mFps.draw(canvas, (canvas.getWidth() - bmp.getWidth()) / 2, 0);
+                mHolder.unlockCanvasAndPost(canvas);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,153 @@
+package es.ava.aruco.debug;
+
+import java.util.Arrays;
+
+import es.ava.aruco.DetectionMetrics;
+import es.ava.aruco.DetectionMetrics.Rejection;
+import es.ava.aruco.DetectionMetrics.Stage;
+import es.ava.aruco.MetricsSink;
+
+/**
+ * Keeps the metrics of the last frames in ring buffers to give percentiles of the
+ * time of each stage, and the number of rejections of each kind since it was
+ * created. Nothing is allocated per frame. It can be read from a different thread
+ * than the one detecting.
+ */
+public class HistogramSink implements MetricsSink {
+	private static final Stage[] STAGES = Stage.values();
+	private static final Rejection[] REJECTIONS = Rejection.values();
+
+	private final int capacity;
+	private final long[][] stageNanos; // [stage][frame], the last one is the total
+	private final int[] markers;
+	private final double[] errors; // mean reprojection error of the markers of each frame, -1 if none
+	private final long[] rejections;
+	private final long[] sorted;
+	private int next, count;
+	private long frames;
+
+	/**
+	 * @param capacity number of frames kept.
+	 */
+	public HistogramSink(int capacity){
+		this.capacity = capacity;
+		stageNanos = new long[STAGES.length+1][capacity];
+		markers = new int[capacity];
+		errors = new double[capacity];
+		rejections = new long[REJECTIONS.length];
+		sorted = new long[capacity];
+		next = count = 0;
+		frames = 0;
+	}
+
+	@Override
+	public synchronized void frameDone(DetectionMetrics metrics){
+		for(int s=0;s<STAGES.length;s++)
+			stageNanos[s][next] = metrics.getStageNanos(STAGES[s]);
+		stageNanos[STAGES.length][next] = metrics.getTotalNanos();
+		markers[next] = metrics.getMarkers();
+		double sum = 0;
+		int n = 0;
+		for(int i=0;i<metrics.getMarkers();i++)
+			if(metrics.getReprojectionError(i) >= 0){
+				sum += metrics.getReprojectionError(i);
+				n++;
+			}
+		errors[next] = n == 0? -1 : sum/n;
+		for(int r=0;r<REJECTIONS.length;r++)
+			rejections[r] += metrics.getRejections(REJECTIONS[r]);
+		next = (next+1)%capacity;
+		count = Math.min(count+1, capacity);
+		frames++;
+	}
+
+	/**
+	 * returns the number of frames received since it was created or reset.
+	 */
+	public synchronized long getFrames(){
+		return frames;
+	}
+
+	/**
+	 * returns the time of a stage that the given fraction of the last frames did
+	 * not exceed, 0.5 for the median.
+	 * @return the time in nanoseconds, 0 if there are no frames.
+	 */
+	public synchronized long getPercentile(Stage stage, double fraction){
+		return percentile(stageNanos[stage.ordinal()], fraction);
+	}
+
+	/**
+	 * Same as above for the time of all the stages together.
+	 */
+	public synchronized long getTotalPercentile(double fraction){
+		return percentile(stageNanos[STAGES.length], fraction);
+	}
+
+	/**
+	 * returns the mean number of markers detected in the last frames.
+	 */
+	public synchronized double getMeanMarkers(){
+		long sum = 0;
+		for(int i=0;i<count;i++)
+			sum += markers[i];
+		return count == 0? 0 : (double)sum/count;
+	}
+
+	/**
+	 * returns the mean reprojection error in pixels of the markers of the last
+	 * frames, -1 if none had a pose.
+	 */
+	public synchronized double getMeanReprojectionError(){
+		double sum = 0;
+		int n = 0;
+		for(int i=0;i<count;i++)
+			if(errors[i] >= 0){
+				sum += errors[i];
+				n++;
+			}
+		return n == 0? -1 : sum/n;
+	}
+
+	/**
+	 * returns the number of rejections of the kind given since it was created or reset.
+	 */
+	public synchronized long getRejections(Rejection reason){
+		return rejections[reason.ordinal()];
+	}
+
+	public synchronized void reset(){
+		next = count = 0;
+		frames = 0;
+		Arrays.fill(rejections, 0);
+	}
+
+	/**
+	 * returns the median and 95th percentile of each stage in milliseconds, to be logged.
+	 */
+	@Override
+	public synchronized String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("frames=").append(frames);
+		sb.append(" total=").append(millis(getTotalPercentile(0.5))).append('/').append(millis(getTotalPercentile(0.95)));
+		for(int s=0;s<STAGES.length;s++)
+			sb.append(' ').append(STAGES[s].name().toLowerCase()).append('=')
+				.append(millis(getPercentile(STAGES[s], 0.5))).append('/').append(millis(getPercentile(STAGES[s], 0.95)));
+		sb.append(" markers=").append(String.format("%.1f", getMeanMarkers()));
+		sb.append(" error=").append(String.format("%.2f", getMeanReprojectionError()));
+		return sb.toString();
+	}
+
+	private long percentile(long[] ring, double fraction){
+		if(count == 0)
+			return 0;
+		System.arraycopy(ring, 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
+		int i = (int)Math.ceil(fraction*count)-1;
+		return sorted[Math.min(Math.max(i, 0), count-1)];
+	}
+
+	private static String millis(long nanos){
+		return String.format("%.2f", nanos/1e6);
+	}
+}
@@ -0,0 +1,49 @@
+package es.ava.aruco.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Records frames in a single file, uncompressed so they are read back exactly as
+ * the detector saw them, to replay them on a desktop with RawFrameSource of the
+ * benchmarks module. Each frame is stored as its rows, columns and type, as 3
+ * big-endian ints, followed by its pixels. It is used on the device, to record the
+ * frames of the camera preview, so it is the only class of the package in the app.
+ */
+public class RawFrameWriter {
+	private final DataOutputStream out;
+	private byte[] buffer;
+
+	public RawFrameWriter(File file) throws IOException{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+		buffer = new byte[0];
+	}
+
+	/**
+	 * Appends a frame.
+	 * @param frame a continuous Mat of 8 bits, such as the grey or RGBA frames.
+	 * @throws IOException
+	 */
+	public void write(Mat frame) throws IOException{
+		if(frame.depth() != CvType.CV_8U || !frame.isContinuous())
+			throw new IOException("only continuous frames of 8 bits can be recorded");
+		int size = (int)(frame.total()*frame.elemSize());
+		if(buffer.length != size)
+			buffer = new byte[size];
+		frame.get(0, 0, buffer);
+		out.writeInt(frame.rows());
+		out.writeInt(frame.cols());
+		out.writeInt(frame.type());
+		out.write(buffer);
+	}
+
+	public void close() throws IOException{
+		out.close();
+	}
+}
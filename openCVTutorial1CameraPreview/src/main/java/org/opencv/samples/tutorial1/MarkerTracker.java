@@ -18,9 +18,9 @@ import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 
 import es.ava.aruco.CameraParameters;
-import es.ava.aruco.MarkerDetector;
 import es.ava.aruco.Marker;
 import es.ava.aruco.Utils;
+import es.ava.aruco.android.DetectionSession;
 
 import android.app.Activity;
 import android.os.Bundle;
@@ -51,6 +51,7 @@ public class MarkerTracker extends Activity implements CvCameraViewListener2 {
     private CameraBridgeViewBase mOpenCvCameraView;
     private boolean              mIsJavaCamera = true;
     private MenuItem             mItemSwitchCamera = null;
+    private DetectionSession     mSession;
 
     private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
         @Override
@@ -87,6 +88,9 @@ public class MarkerTracker extends Activity implements CvCameraViewListener2 {
         mOpenCvCameraView.setVisibility(SurfaceView.VISIBLE);
 
         mOpenCvCameraView.setCvCameraViewListener(this);
+
+        mSession = new DetectionSession(Environment.getExternalStorageDirectory().toString() + DATA_FILEPATH,
+                null, MARKER_SIZE);
     }
 
     @Override
@@ -117,24 +121,21 @@ public class MarkerTracker extends Activity implements CvCameraViewListener2 {
     }
 
     public void onCameraViewStarted(int width, int height) {
+        mSession.start(width, height);
     }
 
     public void onCameraViewStopped() {
+        mSession.stop();
     }
 
     public Mat onCameraFrame(CvCameraViewFrame inputFrame) {
+        //Detection is done on the Y plane, rgba is only needed to draw on
+        Vector<Marker> detectedMarkers = mSession.detect(inputFrame);
+        CameraParameters camParams = mSession.getCameraParameters();
+
         //Convert input to rgba
         Mat rgba = inputFrame.rgba();
 
-        //Setup required parameters for detect method
-        MarkerDetector mDetector = new MarkerDetector();
-        Vector<Marker> detectedMarkers = new Vector<>();
-        CameraParameters camParams = new CameraParameters();
-        camParams.readFromFile(Environment.getExternalStorageDirectory().toString() + DATA_FILEPATH);
-
-        //Populate detectedMarkers
-        mDetector.detect(rgba, detectedMarkers, camParams, MARKER_SIZE);
-
         //Draw Axis for each marker detected
         if (detectedMarkers.size() != 0) {
             for (int i = 0; i < detectedMarkers.size(); i++) {
@@ -0,0 +1,185 @@
+package es.ava.aruco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Checks that a detector reusing its markers and scratch data stops allocating once
+ * it has seen a frame. The bytes allocated by the thread are measured, and the only
+ * ones allowed are those of the java wrapper of Imgproc.findContours, which creates
+ * a MatOfPoint per contour. It needs the desktop build of the OpenCV native library
+ * in java.library.path and a JVM that measures the memory allocated by each thread,
+ * without them the tests are skipped.
+ */
+public class MarkerDetectorTest {
+	private static final int COLS = 640, ROWS = 480;
+	private static final int N_MARKERS = 12;
+	private static final int WARM_UP = 5;
+	private static final int FRAMES = 50;
+	private static final float MARKER_SIZE = 0.1f;
+
+	private static com.sun.management.ThreadMXBean threads;
+
+	@BeforeClass
+	public static void loadNative(){
+		try{
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		}
+		catch(UnsatisfiedLinkError e){
+			Assume.assumeNoException("no OpenCV native library", e);
+		}
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@Test
+	public void noAllocationsAfterWarmUp(){
+		MarkerDetector detector = new MarkerDetector();
+		detector.setPooling(true);
+		assertNoAllocations(detector, new CameraParameters(), 1);
+	}
+
+	@Test
+	public void noAllocationsWithRegionsOfInterest(){
+		MarkerDetector detector = new MarkerDetector();
+		detector.setPooling(true);
+		List<Rect> regions = new ArrayList<Rect>();
+		regions.add(new Rect(0, 0, COLS/2, ROWS));
+		regions.add(new Rect(COLS/2, 0, COLS/2, ROWS));
+		detector.setRegionsOfInterest(regions);
+		assertNoAllocations(detector, new CameraParameters(), regions.size());
+	}
+
+	@Test
+	public void noAllocationsWithTileSampling(){
+		MarkerDetector detector = new MarkerDetector();
+		detector.setPooling(true);
+		detector.setTileSampling(true);
+		detector.setCornerRefinement(true);
+		assertNoAllocations(detector, new CameraParameters(), 1);
+	}
+
+	@Test
+	public void noAllocationsWithPose(){
+		MarkerDetector detector = new MarkerDetector();
+		detector.setPooling(true);
+		assertNoAllocations(detector, camera(), 1);
+	}
+
+	@Test
+	public void noAllocationsWithTrackedSquarePose(){
+		MarkerDetector detector = new MarkerDetector();
+		detector.setPooling(true);
+		detector.setSquarePoseSolver(true);
+		detector.setPoseTracking(true);
+		assertNoAllocations(detector, camera(), 1);
+	}
+
+	/**
+	 * Detects the same frame repeatedly and checks neither the pool nor the thread
+	 * allocate after warm-up, but for the wrapper of findContours.
+	 * @param contourCalls the most times findContours is called per frame.
+	 */
+	private static void assertNoAllocations(MarkerDetector detector, CameraParameters cp, int contourCalls){
+		Mat frame = frame(COLS, ROWS, N_MARKERS);
+		Vector<Marker> markers = new Vector<Marker>();
+		for(int i=0;i<WARM_UP;i++)
+			detector.detect(frame, markers, cp, MARKER_SIZE);
+		assertEquals(N_MARKERS, markers.size());
+		long allowed = contourCalls*findContoursBytes(frame);
+		long allocations = detector.getPoolAllocations();
+		long start = allocatedBytes();
+		for(int i=0;i<FRAMES;i++){
+			detector.detect(frame, markers, cp, MARKER_SIZE);
+			assertEquals(N_MARKERS, markers.size());
+		}
+		long allocated = allocatedBytes() - start - measureCost();
+		assertEquals(allocations, detector.getPoolAllocations());
+		assertTrue(allocated+" bytes allocated in "+FRAMES+" frames, findContours allocates "+allowed,
+				allocated <= allowed);
+		detector.release();
+		frame.release();
+	}
+
+	// bytes allocated by FRAMES calls to findContours with the threshold the detector does by default
+	private static long findContoursBytes(Mat frame){
+		Mat thres = new Mat(), copy = new Mat(), hierarchy = new Mat();
+		Imgproc.adaptiveThreshold(frame, thres, 255.0, Imgproc.ADAPTIVE_THRESH_GAUSSIAN_C,
+				Imgproc.THRESH_BINARY_INV, 7, 7);
+		List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+		long start = 0;
+		for(int i=0;i<WARM_UP+FRAMES;i++){
+			if(i == WARM_UP)
+				start = allocatedBytes();
+			thres.copyTo(copy);
+			for(int j=0;j<contours.size();j++)
+				contours.get(j).release();
+			contours.clear();
+			Imgproc.findContours(copy, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
+		}
+		long bytes = allocatedBytes() - start - measureCost();
+		for(int j=0;j<contours.size();j++)
+			contours.get(j).release();
+		thres.release();
+		copy.release();
+		hierarchy.release();
+		return bytes;
+	}
+
+	private static long allocatedBytes(){
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// bytes allocated by allocatedBytes itself
+	private static long measureCost(){
+		long a = allocatedBytes();
+		long b = allocatedBytes();
+		return b-a;
+	}
+
+	// a camera of 60 degrees of horizontal field of view without distortion
+	private static CameraParameters camera(){
+		CameraParameters cp = new CameraParameters();
+		float f = (float)(COLS/2/Math.tan(Math.toRadians(30)));
+		cp.getCameraMatrix().put(0, 0, new float[]{f, 0, COLS/2, 0, f, ROWS/2, 0, 0, 1});
+		cp.getDistCoeff().fromArray(0, 0, 0, 0, 0);
+		assertTrue(cp.isValid());
+		return cp;
+	}
+
+	// a white grey frame with the markers of ids 0, 7, 14... in a grid
+	private static Mat frame(int cols, int rows, int nMarkers){
+		Mat frame = new Mat(rows, cols, CvType.CV_8UC1, new Scalar(255));
+		int gridCols = 4;
+		int cell = cols/gridCols;
+		int side = 7*(int)(0.7*cell/7);
+		for(int i=0;i<nMarkers;i++){
+			int x = (i%gridCols)*cell + (cell-side)/2;
+			int y = (i/gridCols)*cell + (cell-side)/2;
+			Mat marker = ArucoDictionary.getInstance().createMarkerImage(7*i, side);
+			Mat roi = frame.submat(y, y+side, x, x+side);
+			marker.copyTo(roi);
+			roi.release();
+			marker.release();
+		}
+		return frame;
+	}
+}